@@ -0,0 +1,254 @@
+package com.speed.irc.connection;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Negotiates IRCv3 capabilities with the server. Parsers and features declare
+ * the capabilities they can make use of with {@link #request(String...)}; on
+ * connecting, <tt>CAP LS 302</tt> is sent together with NICK and USER, and as
+ * soon as the server has listed its capabilities the supported subset is
+ * requested and negotiation ended in the same write, so negotiating adds no
+ * round trips to registration. Servers without capability support ignore the
+ * LS and register as usual. Capabilities the server adds or removes later
+ * (<tt>cap-notify</tt>) are requested or dropped as they come and go. A REQ is
+ * accepted or refused as a whole, so when the server refuses several
+ * capabilities they are requested again one at a time, and only those refused
+ * on their own are given up on.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class CapabilityNegotiator {
+	/**
+	 * Longest list of capabilities sent in one REQ, keeping the line well
+	 * inside the 512 byte limit.
+	 */
+	private static final int MAX_REQUEST = 400;
+	private static final Logger LOGGER = Logger
+			.getLogger(CapabilityNegotiator.class.getName());
+
+	private final Server server;
+	private final Set<String> requested = new LinkedHashSet<String>();
+	private final Map<String, String> available = new LinkedHashMap<String, String>();
+	private final Set<String> enabled = new LinkedHashSet<String>();
+	private boolean negotiating;
+
+	public CapabilityNegotiator(final Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Declares capabilities that should be enabled if the server supports
+	 * them. Capabilities declared after negotiation are requested straight
+	 * away if the server supports them.
+	 * 
+	 * @param capabilities
+	 *            the names of the capabilities
+	 */
+	public synchronized void request(final String... capabilities) {
+		final Set<String> wanted = new LinkedHashSet<String>();
+		for (String capability : capabilities) {
+			if (requested.add(capability.toLowerCase())
+					&& available.containsKey(capability.toLowerCase())
+					&& !enabled.contains(capability.toLowerCase())) {
+				wanted.add(capability.toLowerCase());
+			}
+		}
+		if (!negotiating) {
+			sendRequests(wanted, false);
+		}
+	}
+
+	/**
+	 * Checks whether a capability has been declared with
+	 * {@link #request(String...)}.
+	 * 
+	 * @param capability
+	 *            the name of the capability
+	 * @return <tt>true</tt> if it is wanted
+	 */
+	public synchronized boolean isRequested(final String capability) {
+		return requested.contains(capability.toLowerCase());
+	}
+
+	/**
+	 * Checks whether the server has acknowledged a capability on the current
+	 * connection.
+	 * 
+	 * @param capability
+	 *            the name of the capability
+	 * @return <tt>true</tt> if it is enabled
+	 */
+	public synchronized boolean isEnabled(final String capability) {
+		return enabled.contains(capability.toLowerCase());
+	}
+
+	/**
+	 * Checks whether the server supports a capability.
+	 * 
+	 * @param capability
+	 *            the name of the capability
+	 * @return <tt>true</tt> if the server listed it
+	 */
+	public synchronized boolean isAvailable(final String capability) {
+		return available.containsKey(capability.toLowerCase());
+	}
+
+	/**
+	 * Gets the value the server listed for a capability, such as the
+	 * mechanisms for <tt>sasl</tt>.
+	 * 
+	 * @param capability
+	 *            the name of the capability
+	 * @return the value, <tt>""</tt> if it has none or <tt>null</tt> if the
+	 *         server does not support it
+	 */
+	public synchronized String getValue(final String capability) {
+		return available.get(capability.toLowerCase());
+	}
+
+	/**
+	 * Gets the capabilities enabled on the current connection.
+	 * 
+	 * @return a copy of the enabled capabilities
+	 */
+	public synchronized Set<String> getEnabled() {
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(enabled));
+	}
+
+	/**
+	 * Starts negotiation on a new connection. The LS is only written, so that
+	 * it goes out together with the NICK and USER that follow it.
+	 */
+	public synchronized void start() {
+		available.clear();
+		enabled.clear();
+		negotiating = true;
+		server.sendRaw("CAP LS 302");
+	}
+
+	/**
+	 * Ends negotiation early, when the server registered us without it.
+	 */
+	synchronized void registered() {
+		negotiating = false;
+	}
+
+	/**
+	 * Handles a CAP message from the server.
+	 * 
+	 * @param line
+	 *            the message, without tags
+	 */
+	synchronized void handle(final String line) {
+		final String[] parts = line.split(" ", 5);
+		if (parts.length < 4) {
+			return;
+		}
+		final String sub = parts[3].toUpperCase();
+		String list = parts.length > 4 ? parts[4] : "";
+		final boolean more = list.startsWith("* ");
+		if (more) {
+			list = list.substring(2);
+		}
+		if (list.startsWith(":")) {
+			list = list.substring(1);
+		}
+		final String[] capabilities = list.trim().isEmpty() ? new String[0]
+				: list.trim().split(" +");
+		if (sub.equals("LS") || sub.equals("NEW")) {
+			final Set<String> wanted = new LinkedHashSet<String>();
+			for (String capability : capabilities) {
+				final int eq = capability.indexOf('=');
+				final String name = (eq == -1 ? capability : capability
+						.substring(0, eq)).toLowerCase();
+				available.put(name,
+						eq == -1 ? "" : capability.substring(eq + 1));
+				if (requested.contains(name) && !enabled.contains(name)) {
+					wanted.add(name);
+				}
+			}
+			if (sub.equals("LS") && (more || !negotiating)) {
+				return;
+			}
+			if (sub.equals("LS")) {
+				wanted.clear();
+				for (String name : requested) {
+					if (available.containsKey(name)) {
+						wanted.add(name);
+					}
+				}
+			}
+			sendRequests(wanted, negotiating);
+			negotiating = false;
+		} else if (sub.equals("ACK")) {
+			for (String capability : capabilities) {
+				if (capability.startsWith("-")) {
+					enabled.remove(capability.substring(1).toLowerCase());
+				} else {
+					enabled.add(capability.toLowerCase());
+				}
+			}
+		} else if (sub.equals("NAK")) {
+			if (capabilities.length == 1) {
+				LOGGER.info("Server refused capability " + capabilities[0]);
+				return;
+			}
+			LOGGER.fine("Server refused capabilities " + list.trim()
+					+ ", requesting them one at a time");
+			for (String capability : capabilities) {
+				server.sendRawNow("CAP REQ :" + capability);
+			}
+		} else if (sub.equals("DEL")) {
+			for (String capability : capabilities) {
+				available.remove(capability.toLowerCase());
+				enabled.remove(capability.toLowerCase());
+			}
+		}
+	}
+
+	/**
+	 * Requests capabilities, optionally ending negotiation, and flushes.
+	 */
+	private void sendRequests(final Set<String> capabilities, final boolean end) {
+		final StringBuilder builder = new StringBuilder();
+		for (String capability : capabilities) {
+			if (builder.length() > 0
+					&& builder.length() + capability.length() >= MAX_REQUEST) {
+				server.sendRaw("CAP REQ :" + builder);
+				builder.setLength(0);
+			}
+			if (builder.length() > 0) {
+				builder.append(' ');
+			}
+			builder.append(capability);
+		}
+		if (end) {
+			if (builder.length() > 0) {
+				server.sendRaw("CAP REQ :" + builder);
+			}
+			server.sendRawNow("CAP END");
+		} else if (builder.length() > 0) {
+			server.sendRawNow("CAP REQ :" + builder);
+		}
+	}
+}
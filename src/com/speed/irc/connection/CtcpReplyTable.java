@@ -0,0 +1,243 @@
+package com.speed.irc.connection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.speed.irc.types.CTCPReply;
+
+/**
+ * Holds the automated CTCP replies of a server, compiled on the first lookup
+ * after they change. Requests that are plain words (VERSION, TIME) are looked
+ * up in a hash table; pattern requests are compiled once and indexed by their
+ * leading literal word (so <tt>PING (.*)</tt> is only tried for PING
+ * requests). Lookups only lock when the tables have to be rebuilt.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class CtcpReplyTable {
+	private static final Pattern LITERAL = Pattern.compile("[A-Za-z0-9_-]+");
+	private static final String ANY = "";
+
+	private volatile Map<String, CTCPReply> exact = new HashMap<String, CTCPReply>();
+	private volatile Map<String, List<CompiledReply>> patterns = new HashMap<String, List<CompiledReply>>();
+	private final List<CTCPReply> replies = new ArrayList<CTCPReply>();
+	/**
+	 * Set when the replies change; the tables are rebuilt on the next lookup.
+	 */
+	private volatile boolean stale;
+
+	/**
+	 * Adds a reply, replacing an equal reply that was already added.
+	 * 
+	 * @param reply
+	 *            the reply to add
+	 */
+	public synchronized void add(final CTCPReply reply) {
+		replies.remove(reply);
+		replies.add(reply);
+		stale = true;
+	}
+
+	/**
+	 * Removes a reply.
+	 * 
+	 * @param reply
+	 *            the reply to remove
+	 * @return <tt>true</tt> if the reply was present
+	 */
+	public synchronized boolean remove(final CTCPReply reply) {
+		if (!replies.remove(reply)) {
+			return false;
+		}
+		stale = true;
+		return true;
+	}
+
+	/**
+	 * Gets the replies in the order they were added.
+	 * 
+	 * @return a copy of the replies
+	 */
+	public synchronized List<CTCPReply> getReplies() {
+		return new ArrayList<CTCPReply>(replies);
+	}
+
+	private void rebuild() {
+		final Map<String, CTCPReply> exact = new HashMap<String, CTCPReply>();
+		final Map<String, List<CompiledReply>> patterns = new HashMap<String, List<CompiledReply>>();
+		for (CTCPReply reply : replies) {
+			final String request = reply.getRequest();
+			if (LITERAL.matcher(request).matches()) {
+				exact.put(request.toUpperCase(), reply);
+				continue;
+			}
+			final int space = request.indexOf(' ');
+			String head = space == -1 ? ANY : request.substring(0, space);
+			if (!LITERAL.matcher(head).matches()) {
+				head = ANY;
+			}
+			List<CompiledReply> list = patterns.get(head.toUpperCase());
+			if (list == null) {
+				list = new ArrayList<CompiledReply>();
+				patterns.put(head.toUpperCase(), list);
+			}
+			list.add(new CompiledReply(reply));
+		}
+		this.exact = exact;
+		this.patterns = patterns;
+		stale = false;
+	}
+
+	/**
+	 * Gets the reply which corresponds to the request.
+	 * 
+	 * @param request
+	 *            the request to retrieve the reply for
+	 * @return the reply for the supplied request, or <tt>null</tt> if there is
+	 *         none
+	 */
+	public String getReply(final String request) {
+		if (stale) {
+			synchronized (this) {
+				if (stale) {
+					rebuild();
+				}
+			}
+		}
+		final int space = request.indexOf(' ');
+		final String head = (space == -1 ? request : request
+				.substring(0, space)).toUpperCase();
+		if (space == -1) {
+			final CTCPReply reply = exact.get(head);
+			if (reply != null) {
+				return reply.getReply();
+			}
+		}
+		final Map<String, List<CompiledReply>> patterns = this.patterns;
+		String reply = match(patterns.get(head), request);
+		if (reply == null) {
+			reply = match(patterns.get(ANY), request);
+		}
+		return reply;
+	}
+
+	private static String match(final List<CompiledReply> list,
+			final String request) {
+		if (list == null) {
+			return null;
+		}
+		for (CompiledReply reply : list) {
+			final String s = reply.apply(request);
+			if (s != null) {
+				return s;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A pattern reply with its request pattern compiled, and its reply
+	 * compiled into a substitution template. Dynamic replies are recompiled
+	 * only when the reply text changes.
+	 */
+	private static class CompiledReply {
+		private final CTCPReply reply;
+		private final Pattern pattern;
+		private volatile Template template;
+
+		private CompiledReply(final CTCPReply reply) {
+			this.reply = reply;
+			this.pattern = Pattern.compile(reply.getRequest(),
+					Pattern.CASE_INSENSITIVE);
+		}
+
+		private String apply(final String request) {
+			final Matcher matcher = pattern.matcher(request);
+			if (!matcher.matches()) {
+				return null;
+			}
+			final String text = reply.getReply();
+			if (matcher.groupCount() == 0) {
+				return text;
+			}
+			Template template = this.template;
+			if (template == null || !template.source.equals(text)) {
+				template = new Template(text);
+				this.template = template;
+			}
+			return template.apply(matcher);
+		}
+	}
+
+	/**
+	 * A reply split into literal text and <tt>$n</tt> group references. A
+	 * backslash before <tt>$</tt> makes it literal.
+	 */
+	private static class Template {
+		private final String source;
+		private final String[] literals;
+		private final int[] groups;
+
+		private Template(final String source) {
+			this.source = source;
+			final List<String> literals = new ArrayList<String>();
+			final List<Integer> groups = new ArrayList<Integer>();
+			final StringBuilder literal = new StringBuilder();
+			for (int i = 0; i < source.length(); i++) {
+				final char c = source.charAt(i);
+				if (c == '\\' && i + 1 < source.length()
+						&& source.charAt(i + 1) == '$') {
+					literal.append('$');
+					i++;
+				} else if (c == '$' && i + 1 < source.length()
+						&& Character.isDigit(source.charAt(i + 1))) {
+					literals.add(literal.toString());
+					literal.setLength(0);
+					groups.add(Character.getNumericValue(source.charAt(++i)));
+				} else {
+					literal.append(c);
+				}
+			}
+			literals.add(literal.toString());
+			this.literals = literals.toArray(new String[literals.size()]);
+			this.groups = new int[groups.size()];
+			for (int i = 0; i < this.groups.length; i++) {
+				this.groups[i] = groups.get(i);
+			}
+		}
+
+		private String apply(final Matcher matcher) {
+			final StringBuilder builder = new StringBuilder(source.length());
+			builder.append(literals[0]);
+			for (int i = 0; i < groups.length; i++) {
+				if (groups[i] <= matcher.groupCount()) {
+					final String group = matcher.group(groups[i]);
+					if (group != null) {
+						builder.append(group);
+					}
+				}
+				builder.append(literals[i + 1]);
+			}
+			return builder.toString();
+		}
+	}
+}
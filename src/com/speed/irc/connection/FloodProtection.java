@@ -0,0 +1,203 @@
+package com.speed.irc.connection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.speed.irc.event.FloodEvent;
+
+/**
+ * Throttles the CTCP requests the library answers, per source. Requests are
+ * counted per host and per host mask (the host's parent domain, or /24 for IPv4
+ * addresses)
+ * with sliding window counters; a source that goes over its limit is ignored
+ * for a while. Counters are kept for a bounded number of recently seen
+ * sources, the least recently seen being forgotten first.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class FloodProtection {
+	private final Server server;
+	private volatile boolean enabled = true;
+	private long window = 10000;
+	private int hostLimit = 8;
+	private int maskLimit = 20;
+	private long ignoreDuration = 120000;
+	private final Map<String, Counter> counters;
+
+	public FloodProtection(final Server server, final int capacity) {
+		this.server = server;
+		this.counters = new LinkedHashMap<String, Counter>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, Counter> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Counts a request from a host and checks whether it should be answered.
+	 * 
+	 * @param host
+	 *            the host of the sender
+	 * @return <tt>false</tt> if the host or its mask is being ignored
+	 */
+	public boolean allow(final String host) {
+		if (!enabled) {
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		final String mask = getMask(host);
+		synchronized (this) {
+			final boolean hostOk = hit(host, hostLimit, now);
+			final boolean maskOk = mask == null || hit(mask, maskLimit, now);
+			return hostOk && maskOk;
+		}
+	}
+
+	/**
+	 * Checks whether a host, or its mask, is currently ignored without
+	 * counting a request.
+	 * 
+	 * @param host
+	 *            the host to check
+	 * @return <tt>true</tt> if requests from the host are being dropped
+	 */
+	public synchronized boolean isIgnored(final String host) {
+		final long now = System.currentTimeMillis();
+		final Counter counter = counters.get(host);
+		if (counter != null && counter.ignoredUntil > now) {
+			return true;
+		}
+		final String mask = getMask(host);
+		final Counter maskCounter = mask == null ? null : counters.get(mask);
+		return maskCounter != null && maskCounter.ignoredUntil > now;
+	}
+
+	private boolean hit(final String key, final int limit, final long now) {
+		Counter counter = counters.get(key);
+		if (counter == null) {
+			counter = new Counter(now);
+			counters.put(key, counter);
+		}
+		if (counter.ignoredUntil > now) {
+			return false;
+		}
+		if (counter.hit(now, window) <= limit) {
+			return true;
+		}
+		counter.ignoredUntil = now + ignoreDuration;
+		server.getEventManager().dispatchEvent(
+				new FloodEvent(FloodEvent.IGNORE_STARTED, key, server, this));
+		server.getTimer().newTimeout(new Runnable() {
+			public void run() {
+				server.getEventManager().dispatchEvent(
+						new FloodEvent(FloodEvent.IGNORE_ENDED, key, server,
+								FloodProtection.this));
+			}
+		}, ignoreDuration, TimeUnit.MILLISECONDS);
+		return false;
+	}
+
+	/**
+	 * Gets the mask a host is counted under as well as itself:
+	 * <tt>*.b.example.com</tt> for <tt>a.b.example.com</tt>, <tt>1.2.3.*</tt>
+	 * for <tt>1.2.3.4</tt>.
+	 * 
+	 * @param host
+	 *            the host
+	 * @return the mask, or <tt>null</tt> if the host is too short to have one
+	 */
+	public static String getMask(final String host) {
+		final int last = host.lastIndexOf('.');
+		if (last == -1 || host.indexOf(':') != -1) {
+			return null;
+		}
+		if (last + 1 < host.length()
+				&& Character.isDigit(host.charAt(last + 1))) {
+			return host.substring(0, last + 1) + "*";
+		}
+		final int first = host.indexOf('.');
+		return first == last ? null : "*" + host.substring(first);
+	}
+
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sets the limits requests are counted against.
+	 * 
+	 * @param hostLimit
+	 *            the number of requests one host may make per window
+	 * @param maskLimit
+	 *            the number of requests all hosts under one mask may make per
+	 *            window
+	 * @param window
+	 *            the length of the window
+	 * @param ignoreDuration
+	 *            how long a source going over its limit is ignored for
+	 * @param unit
+	 *            the unit of the window and ignore duration
+	 */
+	public synchronized void setLimits(final int hostLimit,
+			final int maskLimit, final long window, final long ignoreDuration,
+			final TimeUnit unit) {
+		this.hostLimit = hostLimit;
+		this.maskLimit = maskLimit;
+		this.window = unit.toMillis(window);
+		this.ignoreDuration = unit.toMillis(ignoreDuration);
+	}
+
+	/**
+	 * A sliding window counter approximated from the count in the current
+	 * fixed window and the count in the previous one.
+	 */
+	private static class Counter {
+		private long windowStart;
+		private int previous;
+		private int current;
+		private long ignoredUntil;
+
+		private Counter(final long now) {
+			windowStart = now;
+		}
+
+		private int hit(final long now, final long window) {
+			final long elapsed = now - windowStart;
+			if (elapsed >= window * 2) {
+				previous = 0;
+				current = 0;
+				windowStart = now;
+			} else if (elapsed >= window) {
+				previous = current;
+				current = 0;
+				windowStart += window;
+			}
+			current++;
+			final double weight = 1 - (double) (now - windowStart) / window;
+			return (int) (previous * weight) + current;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package com.speed.irc.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.speed.irc.util.HashedWheelTimer;
+
+/**
+ * The threads shared by a group of {@link Server}s. Instead of every server
+ * starting its own schedulers, a runtime owns one executor for each kind of
+ * work, sized for the whole group:
+ * <ul>
+ * <li><b>io</b>: the blocking socket readers, one thread per connection,
+ * reused across reconnects</li>
+ * <li><b>parse</b>: the message parsers</li>
+ * <li><b>dispatch</b>: event dispatch and flushing the output buffers</li>
+ * <li><b>timers</b>: delayed and periodic tasks (returned by
+ * {@link Server#getChanExec()}), and the tasks expired by the runtime's
+ * {@link HashedWheelTimer}, which holds the api's own timeouts: WHO
+ * refreshes, rejoins, flood ignores, netsplit flushes and reconnects</li>
+ * </ul>
+ * Servers created without a runtime get a private one, which is shut down
+ * when the server quits. {@link #shutdown(long, TimeUnit)} quits every server
+ * in the runtime and then stops its threads.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class IrcRuntime {
+	private final ExecutorService io;
+	private final ScheduledThreadPoolExecutor parse, dispatch, timers;
+	private final HashedWheelTimer timer;
+	private final List<Server> servers = new CopyOnWriteArrayList<Server>();
+	private final boolean shared;
+	private volatile boolean shutdown;
+
+	/**
+	 * Creates a runtime with one parse thread, two dispatch threads and four
+	 * timer threads.
+	 */
+	public IrcRuntime() {
+		this(1, 2, 4);
+	}
+
+	/**
+	 * Creates a runtime to be shared by several servers.
+	 * 
+	 * @param parseThreads
+	 *            the number of threads parsing messages
+	 * @param dispatchThreads
+	 *            the number of threads dispatching events and flushing output
+	 * @param timerThreads
+	 *            the number of threads running timed tasks
+	 */
+	public IrcRuntime(final int parseThreads, final int dispatchThreads,
+			final int timerThreads) {
+		this(parseThreads, dispatchThreads, timerThreads, true);
+	}
+
+	private IrcRuntime(final int parseThreads, final int dispatchThreads,
+			final int timerThreads, final boolean shared) {
+		this.shared = shared;
+		io = Executors.newCachedThreadPool(factory("IRC io"));
+		parse = new ScheduledThreadPoolExecutor(parseThreads,
+				factory("IRC parse"));
+		dispatch = new ScheduledThreadPoolExecutor(dispatchThreads,
+				factory("IRC dispatch"));
+		timers = new ScheduledThreadPoolExecutor(timerThreads,
+				factory("IRC timer"));
+		timer = new HashedWheelTimer("IRC timer wheel", 100,
+				TimeUnit.MILLISECONDS, 512, timers);
+	}
+
+	/**
+	 * Creates the runtime of a server that was not given one, with the same
+	 * threads a server used to start on its own.
+	 */
+	static IrcRuntime createPrivate() {
+		return new IrcRuntime(1, 2, 10, false);
+	}
+
+	public ExecutorService getIoExecutor() {
+		return io;
+	}
+
+	public ScheduledThreadPoolExecutor getParseExecutor() {
+		return parse;
+	}
+
+	public ScheduledThreadPoolExecutor getDispatchExecutor() {
+		return dispatch;
+	}
+
+	public ScheduledThreadPoolExecutor getTimerExecutor() {
+		return timers;
+	}
+
+	/**
+	 * Gets the timer for the timeouts of the servers in this runtime.
+	 * 
+	 * @return the timer, with a tick of 100 milliseconds
+	 */
+	public HashedWheelTimer getTimer() {
+		return timer;
+	}
+
+	/**
+	 * Gets the servers using this runtime.
+	 * 
+	 * @return a copy of the list of servers
+	 */
+	public List<Server> getServers() {
+		return new ArrayList<Server>(servers);
+	}
+
+	/**
+	 * Gets the number of threads currently started by this runtime.
+	 * 
+	 * @return the number of threads
+	 */
+	public int getThreadCount() {
+		return ((ThreadPoolExecutor) io).getPoolSize() + parse.getPoolSize()
+				+ dispatch.getPoolSize() + timers.getPoolSize();
+	}
+
+	/**
+	 * Gets the number of threads currently running a task.
+	 * 
+	 * @return the number of busy threads
+	 */
+	public int getActiveCount() {
+		return ((ThreadPoolExecutor) io).getActiveCount()
+				+ parse.getActiveCount() + dispatch.getActiveCount()
+				+ timers.getActiveCount();
+	}
+
+	/**
+	 * Gets the number of tasks completed by all of the executors.
+	 * 
+	 * @return the number of completed tasks
+	 */
+	public long getCompletedTaskCount() {
+		return ((ThreadPoolExecutor) io).getCompletedTaskCount()
+				+ parse.getCompletedTaskCount()
+				+ dispatch.getCompletedTaskCount()
+				+ timers.getCompletedTaskCount();
+	}
+
+	/**
+	 * Gets the number of timed and periodic tasks waiting to run, including
+	 * the parse and dispatch cycles of each server and pending timeouts.
+	 * 
+	 * @return the number of queued tasks
+	 */
+	public int getQueuedTaskCount() {
+		return parse.getQueue().size() + dispatch.getQueue().size()
+				+ timers.getQueue().size() + timer.getPending();
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	void register(final Server server) {
+		if (shutdown) {
+			throw new IllegalStateException("Runtime has been shut down");
+		}
+		servers.add(server);
+	}
+
+	/**
+	 * Called when a server quits. A private runtime shuts down with its
+	 * server.
+	 */
+	void unregister(final Server server) {
+		servers.remove(server);
+		if (!shared) {
+			shutdownNow();
+		}
+	}
+
+	/**
+	 * Closes every server using this runtime at once, then stops its threads,
+	 * waiting for running tasks to finish.
+	 * 
+	 * @param timeout
+	 *            the longest time to wait for the servers to close and the
+	 *            threads to stop
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return <tt>true</tt> if every thread stopped in time
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean shutdown(final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		shutdown = true;
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		final List<CompletableFuture<Void>> closing = new ArrayList<CompletableFuture<Void>>();
+		for (Server server : servers) {
+			closing.add(server.close(timeout, unit));
+		}
+		try {
+			CompletableFuture.allOf(
+					closing.toArray(new CompletableFuture<?>[closing.size()]))
+					.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		} catch (TimeoutException ignored) {
+		}
+		for (Server server : servers) {
+			if (!server.close(timeout, unit).isDone()) {
+				server.finishClose(0);
+			}
+		}
+		timer.stop();
+		io.shutdown();
+		parse.shutdown();
+		dispatch.shutdown();
+		timers.shutdown();
+		boolean terminated = true;
+		for (ExecutorService executor : new ExecutorService[] { parse,
+				dispatch, timers, io }) {
+			terminated &= executor.awaitTermination(
+					deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		return terminated;
+	}
+
+	private void shutdownNow() {
+		shutdown = true;
+		timer.stop();
+		io.shutdownNow();
+		parse.shutdownNow();
+		dispatch.shutdownNow();
+		timers.shutdownNow();
+	}
+
+	private static ThreadFactory factory(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				return new Thread(r, name + "-" + count.incrementAndGet());
+			}
+		};
+	}
+}
@@ -0,0 +1,245 @@
+package com.speed.irc.connection;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.speed.irc.event.ApiEvent;
+import com.speed.irc.types.Channel;
+
+/**
+ * Joins channels in as few lines as possible once the server has registered
+ * us. Channels joined before the welcome numeric are held back until it
+ * arrives; they are then sent as comma separated JOINs, keyed channels first,
+ * each line filled up to the line length limit. The MODE and WHO queries for
+ * each joined channel are not sent with the JOIN but queued and sent at a
+ * steady pace in the background, so joining many channels does not flood the
+ * server. The MODE query is sent as a {@link RequestTracker} request, so its
+ * reply is not taken for the answer to another caller's MODE query. When
+ * every channel joined on connecting has been answered,
+ * {@link ApiEvent#CHANNELS_JOINED} is dispatched.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class JoinPipeline {
+	/**
+	 * Longest line sent, leaving room for the CR LF.
+	 */
+	private static final int MAX_LINE = 510;
+
+	private final Server server;
+	private final Map<String, String> pending = new LinkedHashMap<String, String>();
+	private final Set<String> awaiting = new HashSet<String>();
+	private final Queue<Channel> sync = new LinkedList<Channel>();
+	private long syncInterval = 1000;
+	private boolean flushScheduled, syncScheduled, reported;
+	private long connected = System.currentTimeMillis();
+	private volatile long joinTime = -1;
+
+	public JoinPipeline(final Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Queues a channel to be joined.
+	 * 
+	 * @param channel
+	 *            the channel to join
+	 * @param key
+	 *            the key of the channel, or <tt>null</tt> if it has none
+	 */
+	public synchronized void join(final Channel channel, final String key) {
+		pending.put(channel.getName(), key);
+		if (server.isRegistered() && !flushScheduled) {
+			flushScheduled = true;
+			server.getChanExec().execute(new Runnable() {
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sets the delay between the MODE and WHO queries of consecutive joined
+	 * channels.
+	 * 
+	 * @param interval
+	 *            the delay
+	 * @param unit
+	 *            the unit of the delay
+	 */
+	public synchronized void setSyncInterval(final long interval,
+			final TimeUnit unit) {
+		syncInterval = unit.toMillis(interval);
+	}
+
+	/**
+	 * Gets how long it took from connecting until every channel joined on
+	 * connecting had been joined or refused.
+	 * 
+	 * @return the time in milliseconds, or <tt>-1</tt> if the channels are
+	 *         still being joined
+	 */
+	public long getJoinTime() {
+		return joinTime;
+	}
+
+	/**
+	 * Gets the number of joined channels still waiting for their MODE and
+	 * WHO queries.
+	 * 
+	 * @return the number of channels waiting to be synchronised
+	 */
+	public synchronized int getSyncBacklog() {
+		return sync.size();
+	}
+
+	/**
+	 * Starts over on a new connection. Channels queued for joining are kept.
+	 */
+	synchronized void reset() {
+		connected = System.currentTimeMillis();
+		joinTime = -1;
+		reported = false;
+		awaiting.clear();
+		sync.clear();
+	}
+
+	/**
+	 * Called when the server has registered us.
+	 */
+	void registered() {
+		flush();
+	}
+
+	/**
+	 * Called when the server confirms we joined a channel.
+	 */
+	synchronized void joined(final String name) {
+		final Channel channel = server.getChannels().get(name);
+		if (channel != null) {
+			sync.add(channel);
+			if (!syncScheduled) {
+				syncScheduled = true;
+				server.getChanExec().execute(new Runnable() {
+					public void run() {
+						sync(this);
+					}
+				});
+			}
+		}
+		answered(name);
+	}
+
+	/**
+	 * Called when the server refuses to let us join a channel.
+	 */
+	synchronized void refused(final String name) {
+		answered(name);
+	}
+
+	private void answered(final String name) {
+		if (awaiting.remove(name.toLowerCase()) && awaiting.isEmpty()
+				&& pending.isEmpty() && !reported) {
+			reported = true;
+			joinTime = System.currentTimeMillis() - connected;
+			server.getEventManager().dispatchEvent(
+					new ApiEvent(ApiEvent.CHANNELS_JOINED, server, this));
+		}
+	}
+
+	private synchronized void sync(final Runnable task) {
+		final Channel channel = sync.poll();
+		if (channel == null) {
+			syncScheduled = false;
+			return;
+		}
+		server.getRequests().fetchModes(channel);
+		server.sendRawNow("WHO " + channel.getName());
+		server.getTimer().newTimeout(task, syncInterval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends the queued channels as comma separated JOINs.
+	 */
+	private synchronized void flush() {
+		flushScheduled = false;
+		if (pending.isEmpty()) {
+			return;
+		}
+		final List<String> keyed = new ArrayList<String>();
+		final List<String> keys = new ArrayList<String>();
+		final List<String> unkeyed = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : pending.entrySet()) {
+			if (entry.getValue() == null || entry.getValue().isEmpty()) {
+				unkeyed.add(entry.getKey());
+			} else {
+				keyed.add(entry.getKey());
+				keys.add(entry.getValue());
+			}
+			awaiting.add(entry.getKey().toLowerCase());
+		}
+		pending.clear();
+		final StringBuilder channels = new StringBuilder();
+		final StringBuilder keyList = new StringBuilder();
+		for (int i = 0; i < keyed.size() + unkeyed.size(); i++) {
+			final boolean hasKey = i < keyed.size();
+			final String channel = hasKey ? keyed.get(i) : unkeyed.get(i
+					- keyed.size());
+			final String key = hasKey ? keys.get(i) : null;
+			final int length = length("JOIN ") + length(channels)
+					+ length(keyList) + (channels.length() > 0 ? 1 : 0)
+					+ length(channel)
+					+ (key == null ? 0 : length(key) + 1);
+			if (channels.length() > 0 && length > MAX_LINE) {
+				send(channels, keyList);
+			}
+			if (channels.length() > 0) {
+				channels.append(',');
+			}
+			channels.append(channel);
+			if (key != null) {
+				keyList.append(keyList.length() > 0 ? "," : " ").append(key);
+			}
+		}
+		send(channels, keyList);
+	}
+
+	private void send(final StringBuilder channels, final StringBuilder keys) {
+		server.sendRawNow("JOIN " + channels + keys);
+		channels.setLength(0);
+		keys.setLength(0);
+	}
+
+	private static int length(final CharSequence s) {
+		try {
+			return s.toString().getBytes("UTF-8").length;
+		} catch (UnsupportedEncodingException e) {
+			return s.length();
+		}
+	}
+}
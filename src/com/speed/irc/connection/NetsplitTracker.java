@@ -0,0 +1,288 @@
+package com.speed.irc.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.speed.irc.event.NetjoinEvent;
+import com.speed.irc.event.NetsplitEvent;
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelUser;
+import com.speed.irc.types.RawMessage;
+
+/**
+ * Handles QUIT messages and coalesces netsplits and netjoins. Users quitting
+ * with a netsplit reason (<tt>server1 server2</tt>), or inside an IRCv3
+ * <tt>netsplit</tt> batch, are removed from their channels through the
+ * {@link UserChannelIndex} as their QUITs arrive, and reported together in a
+ * single {@link NetsplitEvent}. Their JOINs when the split heals, or JOINs
+ * inside a <tt>netjoin</tt> batch, likewise add them to their channels at
+ * once, so the modes and messages that follow find them, and are reported in
+ * a single {@link NetjoinEvent}. Other QUITs just remove the user from their
+ * channels.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class NetsplitTracker {
+	private static final Pattern SPLIT_REASON = Pattern
+			.compile("[\\w-]+(\\.[\\w-]+)+ [\\w-]+(\\.[\\w-]+)+");
+	/**
+	 * How long to wait after the last quit or join of a split before reporting
+	 * it, when the server does not delimit it with a batch.
+	 */
+	private static final long QUIET_PERIOD = 1000;
+	/**
+	 * How long after a split a JOIN from a split user counts as a netjoin.
+	 */
+	private static final long REJOIN_WINDOW = 30 * 60 * 1000;
+
+	private final Server server;
+	private final Map<String, Group> batches = new HashMap<String, Group>();
+	private final Map<String, Split> splitNicks = new LinkedHashMap<String, Split>();
+	private Group pendingSplit, pendingJoin;
+
+	public NetsplitTracker(final Server server) {
+		this.server = server;
+		server.getCapabilities().request("batch");
+	}
+
+	/**
+	 * Handles a QUIT, BATCH, or netjoin JOIN message.
+	 * 
+	 * @param message
+	 *            the message
+	 * @param batch
+	 *            the reference of the batch the message is part of, or
+	 *            <tt>null</tt>
+	 * @return <tt>true</tt> if the message was handled and should not be
+	 *         passed to the event generators
+	 */
+	public synchronized boolean intercept(final RawMessage message,
+			final String batch) {
+		final String command = message.getCommand();
+		if (command.equals("BATCH")) {
+			return batch(message.getRaw().split(" "));
+		}
+		final boolean quit = command.equals("QUIT");
+		if (!quit && !command.equals("JOIN")
+				|| message.getSender().indexOf('!') == -1) {
+			return false;
+		}
+		final String raw = message.getRaw();
+		final String nick = message.getSender().substring(0,
+				message.getSender().indexOf('!'));
+		Group group = batch == null ? null : batches.get(batch);
+		if (quit) {
+			final int index = raw.indexOf(" :");
+			final String reason = index == -1 ? "" : raw.substring(index + 2);
+			if (group == null && SPLIT_REASON.matcher(reason).matches()) {
+				if (pendingSplit == null
+						|| !reason.equals(pendingSplit.servers)) {
+					flush(pendingSplit);
+					pendingSplit = schedule(new Group(reason, false));
+				}
+				group = pendingSplit;
+			}
+			if (group == null || group.join) {
+				splitNicks.remove(nick.toLowerCase());
+				remove(nick, null);
+			} else {
+				group.touch();
+				group.nicks.add(nick);
+				splitNicks.remove(nick.toLowerCase());
+				splitNicks.put(nick.toLowerCase(), new Split(group.servers,
+						System.currentTimeMillis()));
+				remove(nick, group);
+			}
+			return true;
+		}
+		if (group == null) {
+			final Split split = splitNicks.get(nick.toLowerCase());
+			if (split == null
+					|| System.currentTimeMillis() - split.time > REJOIN_WINDOW) {
+				return false;
+			}
+			if (pendingJoin == null || !split.servers.equals(pendingJoin.servers)) {
+				flush(pendingJoin);
+				pendingJoin = schedule(new Group(split.servers, true));
+			}
+			group = pendingJoin;
+		}
+		if (!group.join) {
+			return false;
+		}
+		final String[] parts = raw.split(" ");
+		String channel = parts[2];
+		if (channel.startsWith(":")) {
+			channel = channel.substring(1);
+		}
+		final String prefix = message.getSender();
+		final int at = prefix.indexOf('@');
+		group.touch();
+		group.nicks.add(nick);
+		splitNicks.remove(nick.toLowerCase());
+		final Channel joined = server.getChannels().get(channel);
+		if (joined != null) {
+			final ChannelUser user = new ChannelUser(nick, "",
+					prefix.substring(prefix.indexOf('!') + 1, at),
+					prefix.substring(at + 1), joined);
+			joined.addChannelUser(user);
+			group.add(joined, Collections.singletonList(user));
+		}
+		return true;
+	}
+
+	private boolean batch(final String[] parts) {
+		if (parts.length < 3 || parts[2].length() < 2) {
+			return false;
+		}
+		final String reference = parts[2].substring(1);
+		if (parts[2].charAt(0) == '+') {
+			if (parts.length < 4
+					|| !parts[3].equalsIgnoreCase("netsplit")
+					&& !parts[3].equalsIgnoreCase("netjoin")) {
+				return false;
+			}
+			batches.put(reference, new Group(parts.length > 5 ? parts[4] + " "
+					+ parts[5] : null, parts[3].equalsIgnoreCase("netjoin")));
+			return true;
+		} else if (parts[2].charAt(0) == '-') {
+			final Group group = batches.remove(reference);
+			flush(group);
+			return group != null;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a user from their channels, noting them in a split if one is
+	 * given.
+	 */
+	private void remove(final String nick, final Group group) {
+		final List<String> nicks = Collections.singletonList(nick);
+		for (Channel channel : server.getUserIndex().getChannels(nick)) {
+			final List<ChannelUser> removed = channel.removeChannelUsers(nicks);
+			if (group != null) {
+				group.add(channel, removed);
+			}
+		}
+	}
+
+	private Group schedule(final Group group) {
+		server.getTimer().newTimeout(new Runnable() {
+			public void run() {
+				synchronized (NetsplitTracker.this) {
+					final long idle = System.currentTimeMillis()
+							- group.touched;
+					if (group != pendingSplit && group != pendingJoin) {
+						return;
+					} else if (idle < QUIET_PERIOD) {
+						server.getTimer().newTimeout(this,
+								QUIET_PERIOD - idle, TimeUnit.MILLISECONDS);
+						return;
+					}
+					flush(group);
+				}
+			}
+		}, QUIET_PERIOD, TimeUnit.MILLISECONDS);
+		return group;
+	}
+
+	/**
+	 * Reports a collected split or join, whose users have already been
+	 * removed from or added to their channels.
+	 */
+	private void flush(final Group group) {
+		if (group == null) {
+			return;
+		}
+		if (group == pendingSplit) {
+			pendingSplit = null;
+		} else if (group == pendingJoin) {
+			pendingJoin = null;
+		}
+		if (group.join) {
+			if (server.getEventManager().isSubscribed(NetjoinEvent.class)) {
+				server.getEventManager().dispatchEvent(
+						new NetjoinEvent(server, group.servers, group.nicks,
+								group.users, this));
+			}
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		final Iterator<Split> it = splitNicks.values().iterator();
+		while (it.hasNext() && now - it.next().time > REJOIN_WINDOW) {
+			it.remove();
+		}
+		if (server.getEventManager().isSubscribed(NetsplitEvent.class)) {
+			server.getEventManager().dispatchEvent(
+					new NetsplitEvent(server, group.servers, group.nicks,
+							group.users, this));
+		}
+	}
+
+	/**
+	 * Users collected for one netsplit or netjoin.
+	 */
+	private static class Group {
+		private final String servers;
+		private final boolean join;
+		private final Set<String> nicks = new LinkedHashSet<String>();
+		private final Map<Channel, List<ChannelUser>> users = new LinkedHashMap<Channel, List<ChannelUser>>();
+		private long touched = System.currentTimeMillis();
+
+		private Group(final String servers, final boolean join) {
+			this.servers = servers;
+			this.join = join;
+		}
+
+		private void touch() {
+			touched = System.currentTimeMillis();
+		}
+
+		private void add(final Channel channel, final List<ChannelUser> added) {
+			List<ChannelUser> list = users.get(channel);
+			if (list == null) {
+				list = new ArrayList<ChannelUser>();
+				users.put(channel, list);
+			}
+			list.addAll(added);
+		}
+	}
+
+	/**
+	 * When, and between which servers, a user split.
+	 */
+	private static class Split {
+		private final String servers;
+		private final long time;
+
+		private Split(final String servers, final long time) {
+			this.servers = servers;
+			this.time = time;
+		}
+	}
+}
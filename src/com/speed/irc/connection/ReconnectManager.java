@@ -0,0 +1,153 @@
+package com.speed.irc.connection;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.speed.irc.event.ApiEvent;
+import com.speed.irc.util.HashedWheelTimer;
+
+/**
+ * Decides when to reconnect after the connection is lost. Every part of the
+ * api that notices a broken connection reports it here, and only the first
+ * report schedules a reconnect, so a lost connection is only ever reconnected
+ * once. Attempts are delayed with exponential backoff and jitter, and the
+ * backoff is reset once the server registers us again. An attempt only counts
+ * as successful then, when {@link ApiEvent#SERVER_DISCONNECTED} is dispatched;
+ * a connection lost before that is retried like any other.
+ * <p/>
+ * On reconnecting, the {@link Server} keeps its channels and their users and
+ * rejoins them; the users are brought up to date when the channels' WHO
+ * replies arrive.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class ReconnectManager {
+	private final Server server;
+	private final Random random = new Random();
+	private long initialDelay = 1000, maxDelay = 300000;
+	private int attempts;
+	private HashedWheelTimer.Timeout pending;
+	private boolean cancelled;
+
+	public ReconnectManager(final Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Sets the delay before the first reconnect attempt and the longest delay
+	 * between attempts. The delay doubles with each failed attempt, and a
+	 * random part of up to half of it is taken off.
+	 * 
+	 * @param initial
+	 *            the delay before the first attempt
+	 * @param max
+	 *            the longest delay between attempts
+	 * @param unit
+	 *            the unit of the delays
+	 */
+	public synchronized void setBackoff(final long initial, final long max,
+			final TimeUnit unit) {
+		initialDelay = unit.toMillis(initial);
+		maxDelay = unit.toMillis(max);
+	}
+
+	/**
+	 * Gets the number of reconnect attempts since the server last registered
+	 * us.
+	 * 
+	 * @return the number of attempts
+	 */
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Checks whether a reconnect attempt is scheduled.
+	 * 
+	 * @return <tt>true</tt> if reconnecting
+	 */
+	public synchronized boolean isReconnecting() {
+		return pending != null;
+	}
+
+	/**
+	 * Reports that the connection has been lost.
+	 * 
+	 * @return <tt>true</tt> if a reconnect is, or already was, scheduled;
+	 *         <tt>false</tt> if auto reconnecting is off
+	 */
+	public synchronized boolean disconnected() {
+		if (!server.autoConnect || cancelled) {
+			return false;
+		}
+		if (pending == null) {
+			pending = server.getTimer().newTimeout(new Runnable() {
+				public void run() {
+					attempt();
+				}
+			}, getDelay(), TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops reconnecting, when quitting.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+	}
+
+	/**
+	 * Resets the backoff once the server has registered us, and reports the
+	 * reconnect if this registration followed one.
+	 */
+	void registered() {
+		final boolean reconnected;
+		synchronized (this) {
+			reconnected = attempts > 0;
+			attempts = 0;
+		}
+		if (reconnected) {
+			server.eventManager.dispatchEvent(new ApiEvent(
+					ApiEvent.SERVER_DISCONNECTED, server, this));
+		}
+	}
+
+	private long getDelay() {
+		final long delay = Math.min(maxDelay,
+				initialDelay << Math.min(attempts, 30));
+		return delay - (long) (random.nextDouble() * delay / 2);
+	}
+
+	private void attempt() {
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			attempts++;
+			pending = null;
+		}
+		if (!server.connect()) {
+			disconnected();
+		}
+	}
+}
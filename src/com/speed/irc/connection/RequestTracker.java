@@ -0,0 +1,558 @@
+package com.speed.irc.connection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelMaskList;
+import com.speed.irc.types.ErrorReplyException;
+import com.speed.irc.types.Mode;
+import com.speed.irc.types.RawMessage;
+import com.speed.irc.types.UserInfo;
+import com.speed.irc.util.HashedWheelTimer;
+import com.speed.irc.util.Numerics;
+
+/**
+ * Sends commands whose replies are wanted and completes a future with the
+ * result once they have arrived. When the server supports
+ * <tt>labeled-response</tt> each command is labeled and its replies are found
+ * by their label. Otherwise replies are matched to the oldest request waiting
+ * for that numeric about the same nick or channel, leaving aside the topic
+ * the server sends when we join a channel. A request fails with an
+ * {@link ErrorReplyException} if the server replies with an error, and with a
+ * {@link TimeoutException} if it has not been answered in time. Futures are
+ * completed on the server's timer executor, so that work chained on them
+ * never runs on, or holds up, the thread reading from the server.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class RequestTracker {
+	private static final String LABELED_RESPONSE = "labeled-response";
+	private static final Set<String> JOIN_ERRORS = new HashSet<String>(
+			Arrays.asList(Numerics.NO_SUCH_CHANNEL, Numerics.TOO_MANY_CHANNELS,
+					Numerics.CHANNEL_IS_FULL, Numerics.INVITE_ONLY_CHANNEL,
+					Numerics.BANNED_FROM_CHANNEL, Numerics.BAD_CHANNEL_KEY));
+
+	private final Server server;
+	private final List<Request<?>> pending = new LinkedList<Request<?>>();
+	private final Map<String, Request<?>> labels = new HashMap<String, Request<?>>();
+	private final Map<String, Request<?>> batches = new HashMap<String, Request<?>>();
+	/**
+	 * Channels we are joining whose names list has not ended yet. The topic
+	 * sent with the JOIN arrives in that time and answers no request.
+	 */
+	private final Set<String> joining = new HashSet<String>();
+	private volatile int outstanding;
+	private long timeout = 30000;
+	private int nextLabel;
+
+	public RequestTracker(final Server server) {
+		this.server = server;
+		server.getCapabilities().request(LABELED_RESPONSE, "batch");
+	}
+
+	/**
+	 * Sets how long to wait for the reply to a request before failing it.
+	 * 
+	 * @param timeout
+	 *            the time to wait
+	 * @param unit
+	 *            the unit of the time
+	 */
+	public synchronized void setTimeout(final long timeout, final TimeUnit unit) {
+		this.timeout = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Gets the number of requests waiting for their replies.
+	 * 
+	 * @return the number of outstanding requests
+	 */
+	public int getOutstanding() {
+		return outstanding;
+	}
+
+	/**
+	 * Sends a request to the server.
+	 * 
+	 * @param request
+	 *            the request to send
+	 * @return a future completed with the result of the request
+	 */
+	public <T> CompletableFuture<T> send(final Request<T> request) {
+		final String line;
+		synchronized (this) {
+			if (server.getCapabilities().isEnabled(LABELED_RESPONSE)) {
+				request.label = Integer.toString(++nextLabel, 36);
+				labels.put(request.label, request);
+				line = "@label=" + request.label + " " + request.command;
+			} else {
+				pending.add(request);
+				line = request.command;
+			}
+			outstanding++;
+			request.timeout = server.getTimer().newTimeout(new Runnable() {
+				public void run() {
+					if (remove(request)) {
+						complete(request, null, new TimeoutException(
+								request.command));
+					}
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+		server.sendRaw(line);
+		return request.future;
+	}
+
+	/**
+	 * Looks up a user with WHOIS.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 * @return a future completed with what the server knows of the user
+	 */
+	public CompletableFuture<UserInfo> whois(final String nick) {
+		return send(new WhoisRequest(nick));
+	}
+
+	/**
+	 * Fetches one of a channel's mask lists and replaces the channel's copy of
+	 * it.
+	 * 
+	 * @param channel
+	 *            the channel
+	 * @param mode
+	 *            <tt>b</tt>, <tt>e</tt> or <tt>I</tt>
+	 * @return a future completed with the masks on the list
+	 */
+	public CompletableFuture<List<String>> fetchMaskList(final Channel channel,
+			final char mode) {
+		if (channel.getMaskList(mode) == null) {
+			throw new IllegalArgumentException("Not a list mode: " + mode);
+		}
+		return send(new MaskListRequest(channel, mode));
+	}
+
+	/**
+	 * Fetches the modes of a channel.
+	 * 
+	 * @param channel
+	 *            the channel
+	 * @return a future completed with the channel's updated modes
+	 */
+	public CompletableFuture<Mode> fetchModes(final Channel channel) {
+		return send(new ModeRequest(channel));
+	}
+
+	/**
+	 * Fetches the topic of a channel.
+	 * 
+	 * @param channel
+	 *            the channel
+	 * @return a future completed with the topic, or <tt>null</tt> if there is
+	 *         none
+	 */
+	public CompletableFuture<String> fetchTopic(final Channel channel) {
+		return send(new TopicRequest(channel));
+	}
+
+	/**
+	 * Passes a message from the server to the request it answers, if any.
+	 */
+	void handle(final RawMessage message) {
+		final String code = message.getCommand();
+		if (code.equals("JOIN") || code.equals(Numerics.NAMES_END)
+				|| JOIN_ERRORS.contains(code)) {
+			joinProgress(message, code);
+		}
+		if (outstanding == 0) {
+			return;
+		}
+		final String[] params = message.getRaw().split(" ");
+		Request<?> request = null;
+		boolean feed = true, last = false;
+		synchronized (this) {
+			final String label = message.getLabel();
+			final String batch = message.getBatch();
+			if (code.equals("BATCH") && params.length > 2) {
+				final String ref = params[2].substring(1);
+				if (params[2].startsWith("+")) {
+					if (label != null && labels.containsKey(label)) {
+						batches.put(ref, labels.get(label));
+					}
+					return;
+				}
+				request = batches.get(ref);
+				feed = false;
+				last = true;
+			} else if (batch != null && batches.containsKey(batch)) {
+				request = batches.get(batch);
+			} else if (label != null && labels.containsKey(label)) {
+				request = labels.get(label);
+				feed = !code.equals("ACK");
+				last = true;
+			} else {
+				for (Request<?> r : pending) {
+					if ((r.replies.contains(code) || r.errors.contains(code))
+							&& r.isAbout(params)
+							&& !(code.equals(Numerics.TOPIC) && joining
+									.contains(params[3].toLowerCase()))) {
+						request = r;
+						break;
+					}
+				}
+			}
+		}
+		if (request == null) {
+			return;
+		}
+		if (feed && request.errors.contains(code)) {
+			if (remove(request)) {
+				complete(request, null, new ErrorReplyException(message));
+			}
+			return;
+		}
+		if (feed && request.replies.contains(code)
+				&& request.reply(message, params)) {
+			last = true;
+		}
+		if (last) {
+			finish(request);
+		}
+	}
+
+	/**
+	 * Keeps track of the channels whose JOIN replies are still arriving.
+	 */
+	private synchronized void joinProgress(final RawMessage message,
+			final String code) {
+		final String[] params = message.getRaw().split(" ");
+		if (params.length < 3) {
+			return;
+		}
+		if (code.equals("JOIN")) {
+			String nick = message.getSender();
+			if (nick.startsWith(":")) {
+				nick = nick.substring(1);
+			}
+			if (nick.indexOf('!') != -1) {
+				nick = nick.substring(0, nick.indexOf('!'));
+			}
+			if (nick.equalsIgnoreCase(server.getNick())) {
+				final String names = params[2].startsWith(":") ? params[2]
+						.substring(1) : params[2];
+				for (String name : names.split(",")) {
+					joining.add(name.toLowerCase());
+				}
+			}
+		} else if (params.length > 3) {
+			joining.remove(params[3].toLowerCase());
+		}
+	}
+
+	private <T> void finish(final Request<T> request) {
+		if (remove(request)) {
+			final T result;
+			try {
+				result = request.result();
+			} catch (RuntimeException e) {
+				complete(request, null, e);
+				return;
+			}
+			complete(request, result, null);
+		}
+	}
+
+	/**
+	 * Completes the future of a request on the timer executor. The result is
+	 * worked out beforehand, on the thread that took the reply, so that it
+	 * reflects the state at that point.
+	 */
+	private <T> void complete(final Request<T> request, final T result,
+			final Throwable error) {
+		final Runnable completion = new Runnable() {
+			public void run() {
+				if (error != null) {
+					request.future.completeExceptionally(error);
+				} else {
+					request.future.complete(result);
+				}
+			}
+		};
+		try {
+			server.getChanExec().execute(completion);
+		} catch (RejectedExecutionException e) {
+			completion.run();
+		}
+	}
+
+	/**
+	 * Stops tracking a request.
+	 * 
+	 * @return <tt>false</tt> if it was already answered or given up on
+	 */
+	private synchronized boolean remove(final Request<?> request) {
+		boolean removed;
+		if (request.label != null) {
+			removed = labels.remove(request.label) != null;
+			final Iterator<Request<?>> it = batches.values().iterator();
+			while (it.hasNext()) {
+				if (it.next() == request) {
+					it.remove();
+				}
+			}
+		} else {
+			removed = pending.remove(request);
+		}
+		if (removed) {
+			outstanding--;
+			request.timeout.cancel();
+		}
+		return removed;
+	}
+
+	/**
+	 * Cancels every outstanding request, as their replies will not arrive.
+	 * Called when the connection is replaced or closed.
+	 */
+	void cancelAll() {
+		final List<Request<?>> requests;
+		synchronized (this) {
+			requests = new ArrayList<Request<?>>(pending);
+			requests.addAll(labels.values());
+			pending.clear();
+			labels.clear();
+			batches.clear();
+			joining.clear();
+			outstanding = 0;
+		}
+		for (Request<?> request : requests) {
+			request.timeout.cancel();
+			request.future.cancel(false);
+		}
+	}
+
+	private static String trailing(final String raw) {
+		final int colon = raw.indexOf(" :");
+		return colon == -1 ? "" : raw.substring(colon + 2);
+	}
+
+	/**
+	 * A command and the numerics it is answered with. Replies are addressed
+	 * to us and name the nick or channel the request is about, which is how
+	 * they are told apart when labels are not available.
+	 */
+	public static abstract class Request<T> {
+		private final String command, key;
+		private final Set<String> replies, errors;
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+		private String label;
+		private HashedWheelTimer.Timeout timeout;
+
+		/**
+		 * @param command
+		 *            the command to send
+		 * @param key
+		 *            the nick or channel the replies are about
+		 * @param replies
+		 *            the numerics the command is answered with
+		 * @param errors
+		 *            the numerics the command fails with
+		 */
+		protected Request(final String command, final String key,
+				final String[] replies, final String[] errors) {
+			this.command = command;
+			this.key = key;
+			this.replies = new HashSet<String>(Arrays.asList(replies));
+			this.errors = new HashSet<String>(Arrays.asList(errors));
+		}
+
+		/**
+		 * Checks whether a reply is about this request's nick or channel.
+		 */
+		protected boolean isAbout(final String[] params) {
+			return params.length > 3 && params[3].equalsIgnoreCase(key);
+		}
+
+		/**
+		 * Takes one of the replies to the request.
+		 * 
+		 * @param message
+		 *            the reply
+		 * @param params
+		 *            the reply split on spaces
+		 * @return <tt>true</tt> if it was the last reply
+		 */
+		protected abstract boolean reply(RawMessage message, String[] params);
+
+		/**
+		 * Gets the result of the request once every reply has been taken.
+		 * 
+		 * @return the result
+		 */
+		protected abstract T result();
+	}
+
+	private static class WhoisRequest extends Request<UserInfo> {
+		private final UserInfo info;
+
+		private WhoisRequest(final String nick) {
+			super("WHOIS " + nick, nick, new String[] { Numerics.AWAY,
+					Numerics.WHOIS_USER, Numerics.WHOIS_SERVER,
+					Numerics.WHOIS_OPERATOR, Numerics.WHOIS_IDLE,
+					Numerics.WHOIS_CHANNELS, Numerics.WHOIS_ACCOUNT,
+					Numerics.WHOIS_END }, new String[] { Numerics.NO_SUCH_NICK,
+					Numerics.NO_SUCH_SERVER });
+			info = new UserInfo(nick);
+		}
+
+		protected boolean reply(final RawMessage message, final String[] params) {
+			final String code = message.getCommand();
+			if (code.equals(Numerics.WHOIS_END)) {
+				return true;
+			} else if (code.equals(Numerics.WHOIS_USER) && params.length > 5) {
+				info.setUser(params[4]);
+				info.setHost(params[5]);
+				info.setRealName(trailing(message.getRaw()));
+			} else if (code.equals(Numerics.WHOIS_SERVER) && params.length > 4) {
+				info.setServerName(params[4]);
+			} else if (code.equals(Numerics.WHOIS_OPERATOR)) {
+				info.setOperator(true);
+			} else if (code.equals(Numerics.WHOIS_IDLE) && params.length > 5) {
+				try {
+					info.setIdle(Long.parseLong(params[4]));
+					info.setSignOn(Long.parseLong(params[5]));
+				} catch (NumberFormatException ignored) {
+				}
+			} else if (code.equals(Numerics.WHOIS_CHANNELS)) {
+				for (String channel : trailing(message.getRaw()).split(" ")) {
+					if (!channel.isEmpty()) {
+						info.addChannel(channel);
+					}
+				}
+			} else if (code.equals(Numerics.WHOIS_ACCOUNT) && params.length > 4) {
+				info.setAccount(params[4]);
+			} else if (code.equals(Numerics.AWAY)) {
+				info.setAway(trailing(message.getRaw()));
+			}
+			return false;
+		}
+
+		protected UserInfo result() {
+			return info;
+		}
+	}
+
+	private static class MaskListRequest extends Request<List<String>> {
+		private final ChannelMaskList list;
+		private final String entry;
+		private final List<String> masks = new ArrayList<String>();
+
+		private MaskListRequest(final Channel channel, final char mode) {
+			this(channel, mode, mode == 'b' ? Numerics.BAN_LIST
+					: mode == 'e' ? Numerics.EXCEPTION_LIST
+							: Numerics.INVITE_LIST, mode == 'b' ? Numerics.BAN_LIST_END
+					: mode == 'e' ? Numerics.EXCEPTION_LIST_END
+							: Numerics.INVITE_LIST_END);
+		}
+
+		private MaskListRequest(final Channel channel, final char mode,
+				final String entry, final String end) {
+			super("MODE " + channel.getName() + " +" + mode, channel.getName(),
+					new String[] { entry, end }, new String[] {
+							Numerics.NO_SUCH_CHANNEL, Numerics.NOT_ON_CHANNEL,
+							Numerics.NOT_AN_OPERATOR });
+			this.list = channel.getMaskList(mode);
+			this.entry = entry;
+		}
+
+		protected boolean reply(final RawMessage message, final String[] params) {
+			if (!message.getCommand().equals(entry)) {
+				return true;
+			}
+			if (params.length > 4) {
+				masks.add(params[4]);
+			}
+			return false;
+		}
+
+		protected List<String> result() {
+			list.clear();
+			for (String mask : masks) {
+				list.add(mask);
+			}
+			return Collections.unmodifiableList(masks);
+		}
+	}
+
+	private static class ModeRequest extends Request<Mode> {
+		private final Channel channel;
+
+		private ModeRequest(final Channel channel) {
+			super("MODE " + channel.getName(), channel.getName(),
+					new String[] { Numerics.CHANNEL_MODES }, new String[] {
+							Numerics.NO_SUCH_CHANNEL, Numerics.NOT_ON_CHANNEL });
+			this.channel = channel;
+		}
+
+		protected boolean reply(final RawMessage message, final String[] params) {
+			return true;
+		}
+
+		protected Mode result() {
+			return channel.chanMode;
+		}
+	}
+
+	private static class TopicRequest extends Request<String> {
+		private final Channel channel;
+		private String topic;
+
+		private TopicRequest(final Channel channel) {
+			super("TOPIC " + channel.getName(), channel.getName(),
+					new String[] { Numerics.TOPIC, Numerics.NO_TOPIC },
+					new String[] { Numerics.NO_SUCH_CHANNEL,
+							Numerics.NOT_ON_CHANNEL });
+			this.channel = channel;
+		}
+
+		protected boolean reply(final RawMessage message, final String[] params) {
+			if (message.getCommand().equals(Numerics.TOPIC)) {
+				topic = trailing(message.getRaw());
+			}
+			return true;
+		}
+
+		protected String result() {
+			channel.setTopic(topic);
+			return topic;
+		}
+	}
+}
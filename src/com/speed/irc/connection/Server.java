@@ -8,22 +8,27 @@ import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.speed.irc.event.ApiEvent;
 import com.speed.irc.event.EventManager;
 import com.speed.irc.types.CTCPReply;
 import com.speed.irc.types.Channel;
 import com.speed.irc.types.NOTICE;
+import com.speed.irc.types.UserInfo;
+import com.speed.irc.util.HashedWheelTimer;
+import com.speed.irc.util.HostmaskMatcher;
+import com.speed.irc.util.StringPool;
+import com.speed.irc.util.SymbolTable;
 
 /**
  * A class representing a socket connection to an IRC server with the
@@ -54,37 +59,193 @@ public class Server implements Runnable {
 	protected Map<String, Channel> channels = new HashMap<String, Channel>();
 	private char[] modeSymbols;
 	private char[] modeLetters;
+	private volatile String[] channelModeTypes = { "beI", "k", "l", "imnpst" };
+	private volatile int nickLength;
 	private String serverName;
 	private String nick;
+	private volatile boolean registered;
 	private ServerMessageParser parser;
-	protected HashSet<CTCPReply> ctcpReplies = new HashSet<CTCPReply>();
+	protected final CtcpReplyTable ctcpReplies = new CtcpReplyTable();
+	protected final HostmaskMatcher ignoreList = new HostmaskMatcher();
+	protected final UserChannelIndex userIndex = new UserChannelIndex();
+	protected final CapabilityNegotiator capabilities = new CapabilityNegotiator(
+			this);
+	protected final JoinPipeline joins = new JoinPipeline(this);
+	protected final RequestTracker requests = new RequestTracker(this);
+	protected final UserInfoCache userInfo = new UserInfoCache(this);
+	/**
+	 * Created on first use, as they take a few hundred kilobytes that a
+	 * server which is only built does not need.
+	 */
+	private volatile StringPool strings;
+	private volatile ServerUserCache userCache;
+	protected final SymbolTable symbols = new SymbolTable();
+	protected final ReconnectManager reconnects = new ReconnectManager(this);
+	protected final FloodProtection floodProtection = new FloodProtection(
+			this, 4096);
 	protected boolean autoConnect;
-	private int port;
-	private ScheduledThreadPoolExecutor chanExec;
-	private ScheduledExecutorService serverExecutor, eventExecutor;
+	protected final ServerConnector connector;
+	private IrcRuntime runtime;
+	private volatile boolean started;
+	private List<String> unsent = new ArrayList<String>();
+	private Logger readLogger;
+	private boolean readLogging;
+	private ScheduledFuture<?> flushTask, dispatchTask;
+	private volatile CompletableFuture<Void> closing;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private volatile long closeTimeout;
+	/**
+	 * How long {@link #quit(String)} waits for the server to close the
+	 * connection, in milliseconds.
+	 */
+	public static final int QUIT_TIMEOUT = 1000;
 
 	public Server(final Socket sock) throws IOException {
+		this(sock, new ServerConnector(sock.getInetAddress().getHostAddress(),
+				sock.getPort()), null);
+	}
+
+	/**
+	 * Connects to one of the connector's endpoints. The connector is kept and
+	 * used again when reconnecting.
+	 * 
+	 * @param connector
+	 *            the endpoints to connect to
+	 * @throws IOException
+	 *             if none of the endpoints could be connected to
+	 */
+	public Server(final ServerConnector connector) throws IOException {
+		this(connector.connect(), connector, null);
+	}
+
+	/**
+	 * Connects to one of the connector's endpoints, running on the threads of
+	 * a shared runtime.
+	 * 
+	 * @param connector
+	 *            the endpoints to connect to
+	 * @param runtime
+	 *            the runtime to share with other servers
+	 * @throws IOException
+	 *             if none of the endpoints could be connected to
+	 */
+	public Server(final ServerConnector connector, final IrcRuntime runtime)
+			throws IOException {
+		this(connector.connect(), connector, runtime);
+	}
+
+	private Server(final Socket sock, final ServerConnector connector,
+			final IrcRuntime runtime) throws IOException {
+		this.connector = connector;
+		this.runtime = runtime;
+		addDefaultCtcpReplies();
+		open(sock);
+	}
+
+	/**
+	 * Creates a server that is not yet connected. No threads are started
+	 * until {@link #start()}.
+	 * 
+	 * @param builder
+	 *            the configuration of the server
+	 */
+	Server(final ServerBuilder builder) {
+		connector = builder.connector;
+		runtime = builder.runtime;
+		autoConnect = builder.autoReconnect;
+		readLogger = builder.readDebug;
+		readLogging = readLogger != null;
+		addDefaultCtcpReplies();
+	}
+
+	private void addDefaultCtcpReplies() {
+		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_VERSION);
+		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_TIME);
+		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_PING);
+	}
+
+	/**
+	 * Connects a server created by a {@link ServerBuilder}. Anything sent
+	 * before starting, such as the registration commands, is written as soon
+	 * as the connection is open.
+	 * 
+	 * @throws IOException
+	 *             if none of the endpoints could be connected to
+	 * @throws IllegalStateException
+	 *             if the server has already been started
+	 */
+	public void start() throws IOException {
+		if (started) {
+			throw new IllegalStateException("Server already started");
+		}
+		open(connector.connect());
+	}
+
+	/**
+	 * Checks whether the server has been connected.
+	 * 
+	 * @return <tt>true</tt> once started
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+
+	private synchronized void open(final Socket sock) throws IOException {
+		if (started) {
+			sock.close();
+			throw new IllegalStateException("Server already started");
+		}
+		final IrcRuntime runtime = getRuntime();
+		runtime.register(this);
 		socket = sock;
-		port = sock.getPort();
 		setServerName(socket.getInetAddress().getHostAddress());
 		write = new BufferedWriter(new OutputStreamWriter(
 				sock.getOutputStream()));
 		read = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-		chanExec = new ScheduledThreadPoolExecutor(10);
-		serverExecutor = Executors.newSingleThreadScheduledExecutor();
-		eventExecutor = Executors.newSingleThreadScheduledExecutor();
-		serverExecutor.scheduleWithFixedDelay(this, 1000, 200,
-				TimeUnit.MILLISECONDS);
-		eventExecutor.scheduleWithFixedDelay(eventManager, 1000, 100,
-				TimeUnit.MILLISECONDS);
+		for (String raw : unsent) {
+			write.write(raw);
+		}
+		if (!unsent.isEmpty()) {
+			write.flush();
+		}
+		unsent = null;
+		flushTask = runtime.getDispatchExecutor().scheduleWithFixedDelay(this,
+				1000, 200, TimeUnit.MILLISECONDS);
+		dispatchTask = runtime.getDispatchExecutor().scheduleWithFixedDelay(
+				eventManager, 1000, 100, TimeUnit.MILLISECONDS);
 		parser = new ServerMessageParser(this);
-		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_VERSION);
-		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_TIME);
-		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_PING);
+		if (readLogger != null) {
+			parser.reader.logger = readLogger;
+		}
+		parser.reader.logging = readLogging;
+		started = true;
+	}
+
+	/**
+	 * Gets the runtime whose threads this server runs on, creating a private
+	 * one if none was given.
+	 * 
+	 * @return the runtime
+	 */
+	public synchronized IrcRuntime getRuntime() {
+		if (runtime == null) {
+			runtime = IrcRuntime.createPrivate();
+		}
+		return runtime;
 	}
 
 	public ScheduledThreadPoolExecutor getChanExec() {
-		return chanExec;
+		return getRuntime().getTimerExecutor();
+	}
+
+	/**
+	 * Gets the timer for this server's timeouts, shared with the other
+	 * servers in its runtime.
+	 * 
+	 * @return the timer
+	 */
+	public HashedWheelTimer getTimer() {
+		return getRuntime().getTimer();
 	}
 
 	/**
@@ -96,85 +257,246 @@ public class Server implements Runnable {
 	}
 
 	/**
-	 * Sends a QUIT command to the server and shuts down this server connection.
+	 * Sends a QUIT command to the server and shuts down this server
+	 * connection, giving the server a second to close it. The shutdown
+	 * completes in the background; use {@link #close(String, long, TimeUnit)}
+	 * to wait for it.
 	 * 
 	 * @param message
 	 *            the quit message to send to the server, <tt>null</tt> or
 	 *            <tt>""</tt> for no message
 	 */
 	public void quit(final String message) {
+		close(message, QUIT_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Quits without a message and shuts down this server connection.
+	 * 
+	 * @see #close(String, long, TimeUnit)
+	 */
+	public CompletableFuture<Void> close(final long timeout,
+			final TimeUnit unit) {
+		return close(null, timeout, unit);
+	}
+
+	/**
+	 * Sends a QUIT command and shuts down this server connection. Queued
+	 * output is flushed with the QUIT, and the connection is read until the
+	 * server closes it or the timeout passes. Then the remaining messages are
+	 * parsed, the resulting events are delivered to the listeners and the
+	 * server's tasks are stopped. Closing again returns the same future.
+	 * 
+	 * @param message
+	 *            the quit message to send to the server, <tt>null</tt> or
+	 *            <tt>""</tt> for no message
+	 * @param timeout
+	 *            the longest time to wait for the server to close the
+	 *            connection, and then for the events to be delivered
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return a future completed once the server has shut down
+	 */
+	public CompletableFuture<Void> close(final String message,
+			final long timeout, final TimeUnit unit) {
+		final CompletableFuture<Void> future;
+		synchronized (this) {
+			if (closing != null) {
+				return closing;
+			}
+			closing = future = new CompletableFuture<Void>();
+		}
+		closeTimeout = unit.toMillis(timeout);
 		eventManager.dispatchEvent(new ApiEvent(ApiEvent.SERVER_QUIT, this,
 				this));
-		parser.reader.running = false;
-		try {
-			if (!socket.isClosed()) {
-				getWriter()
-						.write("QUIT"
-								+ (message == null || message.trim().isEmpty() ? "\n"
-										: (" :Quit :" + message + "\n")));
-				getWriter().flush();
-				socket.close();
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		reconnects.cancel();
+		if (!started) {
+			finishClose(0);
+			return future;
 		}
-		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e1) {
-			e1.printStackTrace();
+		if (isConnected()) {
+			sendRawNow("QUIT"
+					+ (message == null || message.trim().isEmpty() ? ""
+							: (" :Quit :" + message)));
+		}
+		if (!parser.reader.running) {
+			finishClose(closeTimeout);
+		} else {
+			getTimer().newTimeout(new Runnable() {
+				public void run() {
+					finishClose(closeTimeout);
+				}
+			}, timeout, unit);
 		}
-		for (Channel c : channels.values()) {
-			if (c.getFuture() != null && !c.getFuture().isDone())
-				c.getFuture().cancel(true);
+		return future;
+	}
+
+	/**
+	 * Checks whether the server has been closed or is closing.
+	 * 
+	 * @return <tt>true</tt> once {@link #close(String, long, TimeUnit)} or
+	 *         {@link #quit()} has been called
+	 */
+	public boolean isClosing() {
+		return closing != null;
+	}
+
+	/**
+	 * Stops reading, delivers what was read and stops this server's tasks.
+	 * The parser and the event manager only run one pass at a time, so the
+	 * final passes here wait for any pass their cancelled tasks were in the
+	 * middle of, and listeners never run on two threads at once.
+	 * 
+	 * @param drain
+	 *            the longest time to wait for the events to be delivered, in
+	 *            milliseconds
+	 */
+	void finishClose(final long drain) {
+		if (!closed.compareAndSet(false, true)) {
+			return;
 		}
 		try {
-			socket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			if (started) {
+				parser.reader.running = false;
+				try {
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				parser.future.cancel(false);
+				dispatchTask.cancel(false);
+				flushTask.cancel(false);
+				parser.run();
+			}
+			for (Channel c : channels.values()) {
+				if (c.getFuture() != null && !c.getFuture().isDone())
+					c.getFuture().cancel(true);
+			}
+			requests.cancelAll();
+			try {
+				eventManager.shutdown(drain, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				eventManager.shutdown();
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			try {
+				if (started) {
+					runtime.unregister(this);
+				}
+			} finally {
+				closing.complete(null);
+			}
 		}
-		eventExecutor.shutdownNow();
-		parser.execServ.shutdownNow();
-		chanExec.shutdownNow();
-		serverExecutor.shutdownNow();
 	}
 
-	public final void setReadDebug(final Logger logger) {
-		parser.reader.logger = logger;
-		parser.reader.logging = true;
+	public final synchronized void setReadDebug(final Logger logger) {
+		readLogger = logger;
+		readLogging = true;
+		if (parser != null) {
+			parser.reader.logger = logger;
+			parser.reader.logging = true;
+		}
 	}
 
-	public final void setReadDebug(boolean on) {
-		parser.reader.logging = on;
+	public final synchronized void setReadDebug(boolean on) {
+		readLogging = on;
+		if (parser != null) {
+			parser.reader.logging = on;
+		}
 	}
 
-	protected final void connect() {
+	/**
+	 * Opens a new connection to the server, replacing the current one. The
+	 * parser, channels and users are kept: the parser starts reading from the
+	 * new connection and the channels that were joined are joined again once
+	 * the server registers us.
+	 * 
+	 * @return <tt>true</tt> if connected
+	 */
+	protected final boolean connect() {
+		parser.reader.running = false;
 		try {
-			socket = new Socket(serverName, port);
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		try {
+			registered = false;
+			joins.reset();
+			requests.cancelAll();
+			userInfo.clear();
+			socket = connector.connect();
 			write = new BufferedWriter(new OutputStreamWriter(
 					socket.getOutputStream()));
 			read = new BufferedReader(new InputStreamReader(
 					socket.getInputStream()));
-			Logger logger = null;
-			boolean log = false;
-			if (parser.reader.logging) {
-				logger = parser.reader.logger;
-				log = parser.reader.logging;
-			}
-			parser = new ServerMessageParser(this);
-			if (logger != null && log) {
-				setReadDebug(logger);
+			parser.restart();
+			for (Channel channel : channels.values()) {
+				if (channel.isRunning) {
+					channel.join(channel.getKey());
+				} else {
+					userIndex.removeChannel(channel);
+				}
 			}
+			return true;
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		return false;
+	}
+
+	/**
+	 * Called when the connection is found to be broken. Reconnects if auto
+	 * reconnecting is on, otherwise shuts down the connection.
+	 */
+	void connectionLost() {
+		if (closing != null) {
+			finishClose(closeTimeout);
+		} else if (!reconnects.disconnected()) {
+			quit();
+		}
+	}
+
+	/**
+	 * Gets the connector used to open connections to the server.
+	 * 
+	 * @return the server connector
+	 */
+	public ServerConnector getConnector() {
+		return connector;
+	}
+
+	/**
+	 * Gets the reconnect manager, which decides when to reconnect after the
+	 * connection is lost.
+	 * 
+	 * @return the reconnect manager
+	 */
+	public ReconnectManager getReconnectManager() {
+		return reconnects;
 	}
 
 	public ServerMessageParser getParser() {
 		return parser;
 	}
 
+	/**
+	 * Checks whether the server has accepted our registration (sent the
+	 * welcome numeric) on the current connection.
+	 * 
+	 * @return <tt>true</tt> if registered
+	 */
+	public boolean isRegistered() {
+		return registered;
+	}
+
+	void setRegistered(final boolean registered) {
+		this.registered = registered;
+	}
+
 	/**
 	 * Sets whether the api should auto reconnect if the connection is broken.
 	 * Default is <i>off</i>.
@@ -185,6 +507,19 @@ public class Server implements Runnable {
 		this.autoConnect = on;
 	}
 
+	/**
+	 * Gets the longest nick the server allows, as sent in <tt>NICKLEN</tt>.
+	 * 
+	 * @return the maximum nick length, or 0 if the server has not said
+	 */
+	public int getNickLength() {
+		return nickLength;
+	}
+
+	protected void setNickLength(final int nickLength) {
+		this.nickLength = nickLength;
+	}
+
 	/**
 	 * Gets the current nick as captured by the message sending thread.
 	 * 
@@ -203,19 +538,17 @@ public class Server implements Runnable {
 	 *            the reply to send for the request
 	 */
 	public void setCtcpReply(final String request, final String reply) {
-		synchronized (ctcpReplies) {
-			ctcpReplies.add(new CTCPReply() {
+		ctcpReplies.add(new CTCPReply() {
 
-				public String getReply() {
-					return reply;
-				}
+			public String getReply() {
+				return reply;
+			}
 
-				public String getRequest() {
-					return request;
-				}
+			public String getRequest() {
+				return request;
+			}
 
-			});
-		}
+		});
 	}
 
 	/**
@@ -225,9 +558,165 @@ public class Server implements Runnable {
 	 *            the CTCPReply to be added to the list
 	 */
 	public void addCtcpReply(final CTCPReply reply) {
-		synchronized (ctcpReplies) {
-			ctcpReplies.add(reply);
+		ctcpReplies.add(reply);
+	}
+
+	/**
+	 * Removes an automated CTCP reply from the reply list.
+	 * 
+	 * @param reply
+	 *            the CTCPReply to be removed
+	 * @return <tt>true</tt> if the reply was in the list
+	 */
+	public boolean removeCtcpReply(final CTCPReply reply) {
+		return ctcpReplies.remove(reply);
+	}
+
+	/**
+	 * Ignores every message from users matching a mask. Ignored messages are
+	 * dropped as they are read, before they are parsed.
+	 * 
+	 * @param mask
+	 *            a <tt>nick!user@host</tt> mask, which may use <tt>*</tt> and
+	 *            <tt>?</tt>
+	 * @return <tt>true</tt> if the mask was not already ignored
+	 */
+	public boolean ignore(final String mask) {
+		return ignoreList.add(mask);
+	}
+
+	/**
+	 * Stops ignoring a mask.
+	 * 
+	 * @param mask
+	 *            the mask passed to {@link #ignore(String)}
+	 * @return <tt>true</tt> if the mask was ignored
+	 */
+	public boolean unignore(final String mask) {
+		return ignoreList.remove(mask);
+	}
+
+	/**
+	 * Gets the ignore list.
+	 * 
+	 * @return the masks messages are dropped for
+	 */
+	public HostmaskMatcher getIgnoreList() {
+		return ignoreList;
+	}
+
+	/**
+	 * Gets the capability negotiator, used to declare the IRCv3 capabilities
+	 * wanted and to check which are enabled.
+	 * 
+	 * @return the capability negotiator
+	 */
+	public CapabilityNegotiator getCapabilities() {
+		return capabilities;
+	}
+
+	/**
+	 * Gets the pipeline channels are joined through.
+	 * 
+	 * @return the join pipeline
+	 */
+	public JoinPipeline getJoinPipeline() {
+		return joins;
+	}
+
+	/**
+	 * Gets the tracker used to send commands and collect their replies.
+	 * 
+	 * @return the request tracker
+	 */
+	public RequestTracker getRequests() {
+		return requests;
+	}
+
+	/**
+	 * Gets the pool the nicks, idents and hosts of users are shared through.
+	 * 
+	 * @return the string pool
+	 */
+	public StringPool getStringPool() {
+		StringPool strings = this.strings;
+		if (strings == null) {
+			synchronized (this) {
+				strings = this.strings;
+				if (strings == null) {
+					this.strings = strings = new StringPool(16384);
+				}
+			}
+		}
+		return strings;
+	}
+
+	/**
+	 * Gets the table numbering the nicks, idents and hosts stored in compact
+	 * channels.
+	 * 
+	 * @return the symbol table
+	 */
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	/**
+	 * Gets the cache the senders of messages are shared through.
+	 * 
+	 * @return the sender cache
+	 */
+	public ServerUserCache getUserCache() {
+		ServerUserCache userCache = this.userCache;
+		if (userCache == null) {
+			synchronized (this) {
+				userCache = this.userCache;
+				if (userCache == null) {
+					this.userCache = userCache = new ServerUserCache(this);
+				}
+			}
 		}
+		return userCache;
+	}
+
+	/**
+	 * Gets the cache of what is known about users, used to avoid repeating
+	 * WHOIS lookups.
+	 * 
+	 * @return the user information cache
+	 */
+	public UserInfoCache getUserInfoCache() {
+		return userInfo;
+	}
+
+	/**
+	 * Looks up a user with WHOIS.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 * @return a future completed with what the server knows of the user
+	 * @see RequestTracker#whois(String)
+	 */
+	public CompletableFuture<UserInfo> whois(final String nick) {
+		return requests.whois(nick);
+	}
+
+	/**
+	 * Gets the index of which channels each known user is in.
+	 * 
+	 * @return the user to channel index
+	 */
+	public UserChannelIndex getUserIndex() {
+		return userIndex;
+	}
+
+	/**
+	 * Gets the flood protection used for CTCP requests and private queries.
+	 * 
+	 * @return the flood protection of this server
+	 */
+	public FloodProtection getFloodProtection() {
+		return floodProtection;
 	}
 
 	/**
@@ -238,46 +727,7 @@ public class Server implements Runnable {
 	 * @return the reply for the supplied request
 	 */
 	public String getCtcpReply(final String request) {
-		synchronized (ctcpReplies) {
-			for (CTCPReply reply : ctcpReplies) {
-				Matcher matcher = Pattern.compile(reply.getRequest(),
-						Pattern.CASE_INSENSITIVE).matcher(request);
-				if (matcher.matches()) {
-					if (matcher.groupCount() == 0)
-						return reply.getReply();
-					else {
-						String resp = reply.getReply();
-						StringBuffer response = new StringBuffer();
-						boolean flag = false;
-						for (int i = 0; i < resp.length(); i++) {
-							char c = resp.charAt(i);
-							if (c == '$'
-									&& (i == 0 || resp.charAt(i - 1) != '\\')) {
-								flag = true;
-								continue;
-							} else if (resp.charAt(i - 1) == '\\') {
-								response.deleteCharAt(i - 1);
-							} else if (Character.isDigit(c) && flag) {
-								int group = Character.getNumericValue(c);
-								flag = false;
-								try {
-									String str = matcher.group(group);
-									response.append(str);
-								} catch (IndexOutOfBoundsException e) {
-									e.printStackTrace();
-								}
-								continue;
-
-							}
-							response.append(c);
-
-						}
-						return response.toString();
-					}
-				}
-			}
-		}
-		return null;
+		return ctcpReplies.getReply(request);
 	}
 
 	/**
@@ -287,6 +737,58 @@ public class Server implements Runnable {
 	 *            The raw command to be added to the sending queue.
 	 */
 	public void sendRaw(String raw) {
+		if (defer(raw)) {
+			return;
+		}
+		try {
+			write.write(prepare(raw));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends a raw command to the server immediately, flushing it together with
+	 * anything already queued instead of waiting for the next flush. Used for
+	 * replies the connection depends on, such as PONG.
+	 * 
+	 * @param raw
+	 *            The raw command to be sent.
+	 */
+	public void sendRawNow(final String raw) {
+		if (defer(raw)) {
+			return;
+		}
+		final BufferedWriter write = this.write;
+		try {
+			synchronized (write) {
+				write.write(prepare(raw));
+				write.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Holds a command sent before the server is started until it connects.
+	 * 
+	 * @return <tt>true</tt> if the command was held
+	 */
+	private boolean defer(final String raw) {
+		if (started) {
+			return false;
+		}
+		synchronized (this) {
+			if (unsent == null) {
+				return false;
+			}
+			unsent.add(prepare(raw));
+			return true;
+		}
+	}
+
+	private String prepare(String raw) {
 		if (raw.startsWith("NICK")) {
 			nick = raw.replace("NICK", "").replace(":", "").trim();
 		}
@@ -294,11 +796,7 @@ public class Server implements Runnable {
 			raw = raw.replace("\n", "").replace("\r", "");
 		if (!raw.endsWith("\r\n"))
 			raw += "\r\n";
-		try {
-			write.write(raw);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		return raw;
 	}
 
 	/**
@@ -355,7 +853,7 @@ public class Server implements Runnable {
 	 *         unconnected.
 	 */
 	public boolean isConnected() {
-		return !socket.isClosed();
+		return socket != null && !socket.isClosed();
 	}
 
 	/**
@@ -384,6 +882,22 @@ public class Server implements Runnable {
 		this.modeLetters = modeLetters;
 	}
 
+	/**
+	 * Gets the channel mode letters by type, as sent in <tt>CHANMODES</tt>:
+	 * list modes, modes that always take a parameter, modes that take one only
+	 * when set, and modes that never take one. The prefix modes are not
+	 * included, see {@link #getModeLetters()}.
+	 * 
+	 * @return the four groups of mode letters
+	 */
+	public String[] getChannelModeTypes() {
+		return channelModeTypes;
+	}
+
+	protected void setChannelModeTypes(final String[] channelModeTypes) {
+		this.channelModeTypes = channelModeTypes;
+	}
+
 	/**
 	 * Sends a notice to the specified nick.
 	 * 
@@ -413,25 +927,14 @@ public class Server implements Runnable {
 	}
 
 	public void run() {
+		final BufferedWriter write = this.write;
 		try {
 			if (write != null) {
 				write.flush();
 			}
 		} catch (SocketException e) {
-			if (autoConnect) {
-				try {
-					Thread.sleep(5000);
-				} catch (InterruptedException e1) {
-					e1.printStackTrace();
-				}
-				try {
-					socket.close();
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
-				connect();
-				eventManager.dispatchEvent(new ApiEvent(
-						ApiEvent.SERVER_DISCONNECTED, this, this));
+			if (write == this.write) {
+				connectionLost();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
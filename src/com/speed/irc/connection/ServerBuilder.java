@@ -0,0 +1,113 @@
+package com.speed.irc.connection;
+
+import java.util.logging.Logger;
+
+/**
+ * Configures a {@link Server} before it connects. Building a server only
+ * creates the object: no connection is opened and no thread is started until
+ * {@link Server#start()} is called, so servers can be built in bulk and
+ * commands such as the registration can be sent ahead of connecting.
+ * <p/>
+ * <code>
+ * Server server = new ServerBuilder().addEndpoint("irc.example.net", 6667)
+ * 		.setRuntime(runtime).setAutoReconnect(true).build();
+ * </code>
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class ServerBuilder {
+	ServerConnector connector = new ServerConnector();
+	IrcRuntime runtime;
+	boolean autoReconnect;
+	Logger readDebug;
+
+	/**
+	 * Adds a server to connect to.
+	 * 
+	 * @param host
+	 *            the host name or address of the server
+	 * @param port
+	 *            the port to connect to
+	 * @return this builder
+	 */
+	public ServerBuilder addEndpoint(final String host, final int port) {
+		connector.addEndpoint(host, port);
+		return this;
+	}
+
+	/**
+	 * Sets the connector to connect with, replacing any endpoints added.
+	 * 
+	 * @param connector
+	 *            the connector
+	 * @return this builder
+	 */
+	public ServerBuilder setConnector(final ServerConnector connector) {
+		this.connector = connector;
+		return this;
+	}
+
+	/**
+	 * Sets the runtime to share with other servers. Without one, the server
+	 * gets a private runtime when it starts.
+	 * 
+	 * @param runtime
+	 *            the runtime
+	 * @return this builder
+	 */
+	public ServerBuilder setRuntime(final IrcRuntime runtime) {
+		this.runtime = runtime;
+		return this;
+	}
+
+	/**
+	 * @param on
+	 *            whether to reconnect when the connection is lost
+	 * @return this builder
+	 * @see Server#setAutoReconnect(boolean)
+	 */
+	public ServerBuilder setAutoReconnect(final boolean on) {
+		autoReconnect = on;
+		return this;
+	}
+
+	/**
+	 * @param logger
+	 *            the logger to log messages read from the server to
+	 * @return this builder
+	 * @see Server#setReadDebug(Logger)
+	 */
+	public ServerBuilder setReadDebug(final Logger logger) {
+		readDebug = logger;
+		return this;
+	}
+
+	/**
+	 * Creates the server, without connecting it.
+	 * 
+	 * @return the server
+	 * @throws IllegalStateException
+	 *             if no endpoints were given
+	 */
+	public Server build() {
+		if (connector.getEndpoints().isEmpty()) {
+			throw new IllegalStateException("No endpoints to connect to");
+		}
+		return new Server(this);
+	}
+}
@@ -0,0 +1,328 @@
+package com.speed.irc.connection;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opens connections to one of a list of server endpoints. Every address the
+ * endpoints resolve to is a candidate; candidates are tried fastest first by
+ * the round trip times measured on earlier connects, with address families
+ * interleaved and recently failing addresses last. Attempts are started a
+ * short delay apart, or as soon as the previous one fails, and the first
+ * connection to be established wins (as in Happy Eyeballs, RFC 8305). The
+ * statistics are kept across reconnects.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class ServerConnector {
+	/**
+	 * How long failures count against an address.
+	 */
+	private static final long FAILURE_MEMORY = 5 * 60 * 1000;
+	/**
+	 * Weight of a new round trip time in the moving average.
+	 */
+	private static final double RTT_WEIGHT = 0.3;
+
+	private static final ExecutorService ATTEMPTS = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "Connect attempt");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final List<InetSocketAddress> endpoints = new CopyOnWriteArrayList<InetSocketAddress>();
+	private final ConcurrentHashMap<InetSocketAddress, AddressStats> stats = new ConcurrentHashMap<InetSocketAddress, AddressStats>();
+	private volatile long attemptDelay = 250, connectTimeout = 10000;
+
+	public ServerConnector() {
+	}
+
+	public ServerConnector(final String host, final int port) {
+		addEndpoint(host, port);
+	}
+
+	/**
+	 * Adds a server to connect to.
+	 * 
+	 * @param host
+	 *            the host name or address of the server
+	 * @param port
+	 *            the port to connect to
+	 */
+	public void addEndpoint(final String host, final int port) {
+		endpoints.add(InetSocketAddress.createUnresolved(host, port));
+	}
+
+	public List<InetSocketAddress> getEndpoints() {
+		return Collections.unmodifiableList(endpoints);
+	}
+
+	/**
+	 * Sets how long to wait for an attempt before starting the next one.
+	 * 
+	 * @param delay
+	 *            the delay between attempts
+	 * @param unit
+	 *            the unit of the delay
+	 */
+	public void setAttemptDelay(final long delay, final TimeUnit unit) {
+		attemptDelay = unit.toMillis(delay);
+	}
+
+	/**
+	 * Sets how long a single attempt may take to connect.
+	 * 
+	 * @param timeout
+	 *            the connect timeout
+	 * @param unit
+	 *            the unit of the timeout
+	 */
+	public void setConnectTimeout(final long timeout, final TimeUnit unit) {
+		connectTimeout = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Gets the statistics kept for an address.
+	 * 
+	 * @param address
+	 *            a resolved address of one of the endpoints
+	 * @return the statistics, or <tt>null</tt> if the address has not been
+	 *         tried
+	 */
+	public AddressStats getStats(final InetSocketAddress address) {
+		return stats.get(address);
+	}
+
+	/**
+	 * Connects to the first candidate address to answer.
+	 * 
+	 * @return the connected socket
+	 * @throws IOException
+	 *             if no endpoint resolves or every attempt fails
+	 */
+	public Socket connect() throws IOException {
+		final LinkedList<InetSocketAddress> candidates = new LinkedList<InetSocketAddress>(
+				getCandidates());
+		final CompletionService<Socket> attempts = new ExecutorCompletionService<Socket>(
+				ATTEMPTS);
+		final AtomicBoolean done = new AtomicBoolean();
+		IOException failure = null;
+		int running = 0;
+		try {
+			while (running > 0 || !candidates.isEmpty()) {
+				if (running == 0) {
+					attempts.submit(attempt(candidates.poll(), done));
+					running++;
+				}
+				final Future<Socket> result = candidates.isEmpty() ? attempts
+						.take() : attempts.poll(attemptDelay,
+						TimeUnit.MILLISECONDS);
+				if (result == null) {
+					attempts.submit(attempt(candidates.poll(), done));
+					running++;
+					continue;
+				}
+				running--;
+				try {
+					final Socket socket = result.get();
+					if (socket != null) {
+						return socket;
+					}
+				} catch (ExecutionException e) {
+					failure = e.getCause() instanceof IOException ? (IOException) e
+							.getCause() : new IOException(e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = new IOException("Interrupted while connecting");
+		} finally {
+			done.set(true);
+		}
+		throw failure == null ? new IOException("No addresses to connect to")
+				: failure;
+	}
+
+	private Callable<Socket> attempt(final InetSocketAddress address,
+			final AtomicBoolean done) {
+		return new Callable<Socket>() {
+			public Socket call() throws IOException {
+				final AddressStats stats = getOrCreateStats(address);
+				final Socket socket = new Socket();
+				final long start = System.nanoTime();
+				try {
+					socket.connect(address, (int) connectTimeout);
+				} catch (IOException e) {
+					stats.failed();
+					socket.close();
+					throw e;
+				}
+				stats.connected((System.nanoTime() - start) / 1000000);
+				if (done.getAndSet(true)) {
+					socket.close();
+					return null;
+				}
+				return socket;
+			}
+		};
+	}
+
+	private AddressStats getOrCreateStats(final InetSocketAddress address) {
+		AddressStats s = stats.get(address);
+		if (s == null) {
+			s = new AddressStats();
+			final AddressStats old = stats.putIfAbsent(address, s);
+			if (old != null) {
+				s = old;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Resolves the endpoints and orders their addresses by how likely they
+	 * are to connect quickly.
+	 */
+	private List<InetSocketAddress> getCandidates() throws UnknownHostException {
+		final List<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>();
+		UnknownHostException failure = null;
+		for (InetSocketAddress endpoint : endpoints) {
+			final InetAddress[] addresses;
+			try {
+				addresses = InetAddress.getAllByName(endpoint.getHostName());
+			} catch (UnknownHostException e) {
+				failure = e;
+				continue;
+			}
+			final List<InetAddress> v6 = new ArrayList<InetAddress>();
+			final List<InetAddress> v4 = new ArrayList<InetAddress>();
+			for (InetAddress address : addresses) {
+				(address instanceof Inet6Address ? v6 : v4).add(address);
+			}
+			for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+				if (i < v6.size()) {
+					candidates.add(new InetSocketAddress(v6.get(i), endpoint
+							.getPort()));
+				}
+				if (i < v4.size()) {
+					candidates.add(new InetSocketAddress(v4.get(i), endpoint
+							.getPort()));
+				}
+			}
+		}
+		if (candidates.isEmpty() && failure != null) {
+			throw failure;
+		}
+		final long now = System.currentTimeMillis();
+		Collections.sort(candidates, new Comparator<InetSocketAddress>() {
+			public int compare(final InetSocketAddress a,
+					final InetSocketAddress b) {
+				final long sa = score(stats.get(a), now);
+				final long sb = score(stats.get(b), now);
+				return sa < sb ? -1 : sa == sb ? 0 : 1;
+			}
+		});
+		return candidates;
+	}
+
+	/**
+	 * Orders addresses: known round trip time first, then untried, then
+	 * recently failing ones.
+	 */
+	private static long score(final AddressStats stats, final long now) {
+		if (stats == null) {
+			return Integer.MAX_VALUE;
+		}
+		if (stats.getFailures() > 0
+				&& now - stats.getLastFailure() < FAILURE_MEMORY) {
+			return Integer.MAX_VALUE + (long) stats.getFailures();
+		}
+		return stats.getRtt() < 0 ? Integer.MAX_VALUE : stats.getRtt();
+	}
+
+	/**
+	 * Connect history of one address.
+	 */
+	public static class AddressStats {
+		private double rtt = -1;
+		private int failures;
+		private long lastFailure, connects;
+
+		synchronized void connected(final long time) {
+			rtt = rtt < 0 ? time : rtt + RTT_WEIGHT * (time - rtt);
+			failures = 0;
+			connects++;
+		}
+
+		synchronized void failed() {
+			failures++;
+			lastFailure = System.currentTimeMillis();
+		}
+
+		/**
+		 * Gets the moving average of the time taken to connect, which is
+		 * about one round trip.
+		 * 
+		 * @return the time in milliseconds, or <tt>-1</tt> if never connected
+		 */
+		public synchronized long getRtt() {
+			return Math.round(rtt);
+		}
+
+		/**
+		 * Gets the number of failed attempts since the last success.
+		 * 
+		 * @return the number of consecutive failures
+		 */
+		public synchronized int getFailures() {
+			return failures;
+		}
+
+		public synchronized long getLastFailure() {
+			return lastFailure;
+		}
+
+		public synchronized long getConnects() {
+			return connects;
+		}
+	}
+}
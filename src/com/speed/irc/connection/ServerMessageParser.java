@@ -1,16 +1,21 @@
 package com.speed.irc.connection;
 
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import com.speed.irc.event.ChannelEvent;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.EventManager;
 import com.speed.irc.event.ExceptionEvent;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.RawMessageEvent;
 import com.speed.irc.event.generators.JoinGenerator;
@@ -21,13 +26,17 @@ import com.speed.irc.event.generators.PartGenerator;
 import com.speed.irc.event.generators.PrivmsgGenerator;
 import com.speed.irc.types.CTCPReply;
 import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelMaskList;
 import com.speed.irc.types.ChannelUser;
 import com.speed.irc.types.ParsingException;
 import com.speed.irc.types.RawMessage;
 import com.speed.irc.util.Numerics;
+import com.speed.irc.util.StringPool;
 
 /**
- * Processes messages sent from the server.
+ * Processes messages sent from the server. Generators annotated with
+ * {@link GeneratorProperties} are skipped when no one is subscribed to the
+ * events they produce, unless they also update state.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -46,12 +55,25 @@ import com.speed.irc.util.Numerics;
  * 
  * @author Shivam Mistry
  */
+@GeneratorProperties(events = ChannelEvent.class, updatesState = true)
 public class ServerMessageParser implements Runnable, EventGenerator {
 	private final Server server;
 	private List<EventGenerator> generators;
-	protected ServerMessageReader reader;
+	protected volatile ServerMessageReader reader;
 	protected ScheduledExecutorService execServ;
 	protected Future<?> future;
+	protected final NetsplitTracker netsplits;
+	/**
+	 * The mask lists being listed by the server, which are cleared when their
+	 * first entry arrives so they end up holding exactly the listed masks.
+	 */
+	private final Set<ChannelMaskList> listing = new HashSet<ChannelMaskList>();
+	private final Map<Class<?>, GeneratorProperties> properties = new ConcurrentHashMap<Class<?>, GeneratorProperties>();
+	/**
+	 * Used for generators without properties, which are always run.
+	 */
+	private static final GeneratorProperties ALWAYS = ServerMessageParser.class
+			.getAnnotation(GeneratorProperties.class);
 	
 	public static final CTCPReply CTCP_REPLY_VERSION = new CTCPReply() {
 
@@ -91,6 +113,9 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 
 	public ServerMessageParser(final Server server) {
 		this.server = server;
+		netsplits = new NetsplitTracker(server);
+		server.getCapabilities().request("multi-prefix", "extended-join",
+				"message-tags", "server-time", "account-tag");
 		generators = new CopyOnWriteArrayList<EventGenerator>();
 		generators.add(this);
 		generators.add(new JoinGenerator());
@@ -100,8 +125,8 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 		generators.add(new PartGenerator());
 		generators.add(new PrivmsgGenerator());
 		reader = new ServerMessageReader(server);
-		execServ = Executors.newSingleThreadScheduledExecutor();
-		new Thread(reader, "Server message reader").start();
+		execServ = server.getRuntime().getParseExecutor();
+		server.getRuntime().getIoExecutor().execute(reader);
 		future = execServ.scheduleWithFixedDelay(this, 0, 50,
 				TimeUnit.MILLISECONDS);
 
@@ -109,17 +134,69 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 
 	private synchronized void parse(final String s) throws Exception {
 		final RawMessage message = new RawMessage(s, server);
-		for (EventGenerator generator : generators) {
-			if (generator.accept(message)) {
-				IRCEvent event = generator.generate(message);
-				if (event != null)
-					server.eventManager.dispatchEvent(event);
+		final EventManager eventManager = server.eventManager;
+		if (!netsplits.intercept(message, message.getBatch())) {
+			for (EventGenerator generator : generators) {
+				if (!isWanted(generator, eventManager)) {
+					continue;
+				}
+				if (generator.accept(message)) {
+					IRCEvent event = generator.generate(message);
+					if (event != null)
+						eventManager.dispatchEvent(event);
+				}
 			}
 		}
-		server.eventManager.dispatchEvent(new RawMessageEvent(message, this));
+		server.requests.handle(message);
+		server.userInfo.handle(message);
+		server.getUserCache().handle(message);
+		if (eventManager.isSubscribed(RawMessageEvent.class)) {
+			eventManager.dispatchEvent(new RawMessageEvent(message, this));
+		}
+
+	}
 
+	/**
+	 * Checks whether a generator has to run: either it updates state, or
+	 * someone is subscribed to one of its events.
+	 */
+	private boolean isWanted(final EventGenerator generator,
+			final EventManager eventManager) {
+		GeneratorProperties props = properties.get(generator.getClass());
+		if (props == null) {
+			props = generator.getClass().getAnnotation(
+					GeneratorProperties.class);
+			if (props == null) {
+				props = ALWAYS;
+			}
+			properties.put(generator.getClass(), props);
+		}
+		if (props.updatesState()) {
+			return true;
+		}
+		for (Class<? extends IRCEvent> type : props.events()) {
+			if (eventManager.isSubscribed(type)) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
+	/**
+	 * Starts reading from the server's new connection after a reconnect. The
+	 * old reader is stopped and the messages it had queued are kept.
+	 */
+	void restart() {
+		final ServerMessageReader old = reader;
+		old.running = false;
+		final ServerMessageReader reader = new ServerMessageReader(server);
+		reader.logger = old.logger;
+		reader.logging = old.logging;
+		reader.getQueue().addAll(old.getQueue());
+		this.reader = reader;
+		server.getRuntime().getIoExecutor().execute(reader);
+	}
+
 	public void addGenerator(final EventGenerator generator) {
 		generators.add(generator);
 	}
@@ -128,11 +205,17 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 		return generators.remove(generator);
 	}
 
-	public void run() {
+	/**
+	 * Parses the messages read so far. Only one pass runs at a time, so a pass
+	 * started while another is running waits for it and messages are always
+	 * parsed in the order they were read.
+	 */
+	public synchronized void run() {
 		String s;
-		if (!reader.isEmpty()) {
-			s = reader.poll();
-			s = s.substring(1);
+		while ((s = reader.poll()) != null) {
+			if (s.startsWith(":")) {
+				s = s.substring(1);
+			}
 			try {
 				parse(s);
 			} catch (Exception e) {
@@ -151,10 +234,9 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 	public IRCEvent generate(RawMessage message) {
 		String raw = message.getRaw();
 		String code = message.getCommand();
-		if (raw.startsWith("PING")) {
-			server.sendRaw(raw.replaceFirst("PING", "PONG") + "\n");
-		} else if (message.getCommand().equals(Numerics.SERVER_SUPPORT)) {
-			if (raw.contains("PREFIX")) {
+		if (code.equals(Numerics.SERVER_SUPPORT)) {
+			if (raw.contains("PREFIX") || raw.contains("CHANMODES")
+					|| raw.contains("NICKLEN")) {
 				String temp = raw.substring(0, raw.indexOf(" :"));
 				String[] parts = temp.split(" ");
 				for (String t : parts) {
@@ -165,6 +247,17 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 							server.setModeLetters(letters.toCharArray());
 							server.setModeSymbols(symbols.toCharArray());
 						}
+					} else if (t.startsWith("CHANMODES=")) {
+						final String[] types = t.substring(10).split(",", -1);
+						if (types.length >= 4) {
+							server.setChannelModeTypes(new String[] { types[0],
+									types[1], types[2], types[3] });
+						}
+					} else if (t.startsWith("NICKLEN=")) {
+						try {
+							server.setNickLength(Integer.parseInt(t.substring(8)));
+						} catch (NumberFormatException ignored) {
+						}
 					}
 				}
 			}
@@ -176,22 +269,67 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 			}
 			Channel channel = server.channels.get(chan_name);
 			channel.chanMode.parse(modez);
+		} else if (code.equals(Numerics.BAN_LIST)
+				|| code.equals(Numerics.EXCEPTION_LIST)
+				|| code.equals(Numerics.INVITE_LIST)) {
+			final String[] temp = raw.split(" ");
+			final Channel channel = server.channels.get(temp[3]);
+			if (channel != null && temp.length > 4) {
+				final char mode = code.equals(Numerics.BAN_LIST) ? 'b' : code
+						.equals(Numerics.EXCEPTION_LIST) ? 'e' : 'I';
+				final ChannelMaskList list = channel.getMaskList(mode);
+				if (listing.add(list)) {
+					list.clear();
+				}
+				list.add(temp[4]);
+			}
+		} else if (code.equals(Numerics.BAN_LIST_END)
+				|| code.equals(Numerics.EXCEPTION_LIST_END)
+				|| code.equals(Numerics.INVITE_LIST_END)) {
+			final String[] temp = raw.split(" ");
+			final Channel channel = temp.length > 3 ? server.channels
+					.get(temp[3]) : null;
+			if (channel != null) {
+				final ChannelMaskList list = channel.getMaskList(code
+						.equals(Numerics.BAN_LIST_END) ? 'b' : code
+						.equals(Numerics.EXCEPTION_LIST_END) ? 'e' : 'I');
+				if (!listing.remove(list)) {
+					list.clear();
+				}
+			}
 		} else if (code.equals(Numerics.WHO_RESPONSE)) {
-			Channel channel = server.channels.get(raw.split(" ")[3]);
-			String[] temp = raw.split(" ");
-			String user = temp[4];
-			String host = temp[5];
-			String nick = temp[7];
-			String modes = temp[8];
-			modes = modes.replace("*", "").replace("G", "").replace("H", "");
-			channel.userBuffer.add(new ChannelUser(nick, modes, user, host,
-					channel));
+			final int[] spaces = new int[9];
+			int count = 0;
+			for (int i = raw.indexOf(' '); i != -1 && count < spaces.length; i = raw
+					.indexOf(' ', i + 1)) {
+				spaces[count++] = i;
+			}
+			if (count < spaces.length) {
+				return null;
+			}
+			final StringPool pool = server.getStringPool();
+			final Channel channel = server.channels.get(pool.intern(raw,
+					spaces[2] + 1, spaces[3]));
+			if (channel == null) {
+				return null;
+			}
+			final String user = pool.intern(raw, spaces[3] + 1, spaces[4]);
+			final String host = pool.intern(raw, spaces[4] + 1, spaces[5]);
+			final String nick = pool.intern(raw, spaces[6] + 1, spaces[7]);
+			final StringBuilder modes = new StringBuilder(4);
+			for (int i = spaces[7] + 1; i < spaces[8]; i++) {
+				final char c = raw.charAt(i);
+				if (c != '*' && c != 'G' && c != 'H') {
+					modes.append(c);
+				}
+			}
+			channel.userBuffer.add(new ChannelUser(nick, pool.intern(modes, 0,
+					modes.length()), user, host, channel));
 
 		} else if (code.equals(Numerics.WHO_END)) {
 			Channel channel = server.channels.get(raw.split(" ")[3]);
 
-			channel.users.clear();
-			channel.users.addAll(channel.userBuffer);
+			channel.setChannelUsers(channel.userBuffer);
 			channel.userBuffer.clear();
 		} else if (code.toLowerCase().equals("topic")) {
 			Channel channel = server.channels.get(raw.split(" ")[2]);
@@ -206,13 +344,31 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 			Channel channel = server.channels.get(raw.split(" ")[3]);
 			if (channel != null && channel.isRunning)
 				channel.isRunning = false;
+			server.getJoinPipeline().refused(raw.split(" ")[3]);
+		} else if (code.equals(Numerics.NO_SUCH_CHANNEL)
+				|| code.equals(Numerics.TOO_MANY_CHANNELS)
+				|| code.equals(Numerics.CHANNEL_IS_FULL)
+				|| code.equals(Numerics.INVITE_ONLY_CHANNEL)
+				|| code.equals(Numerics.BAD_CHANNEL_KEY)) {
+			final String[] temp = raw.split(" ");
+			if (temp.length > 3) {
+				server.getJoinPipeline().refused(temp[3]);
+			}
+		} else if (code.equals("JOIN")
+				&& message.getSender().startsWith(server.getNick() + "!")) {
+			String chan = message.getTarget();
+			if (chan.startsWith(":")) {
+				chan = chan.substring(1);
+			}
+			server.getJoinPipeline().joined(chan);
 		} else if (code.equals("NICK")) {
+			final String oldNick = message.getSender().split("!")[0];
+			String newNick = message.getTarget();
+			if (newNick.startsWith(":")) {
+				newNick = newNick.substring(1);
+			}
 			for (Channel channel : server.channels.values()) {
-				final ChannelUser user = channel.getUser(message.getSender()
-						.split("!")[0]);
-				if (user != null) {
-					user.setNick(raw.substring(raw.indexOf(": ") + 2).trim());
-				}
+				channel.renameChannelUser(oldNick, newNick);
 			}
 		}
 		return null;
@@ -2,15 +2,19 @@ package com.speed.irc.connection;
 
 import java.io.IOException;
 import java.util.Queue;
+import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
 
-import com.speed.irc.event.ApiEvent;
+import com.speed.irc.util.Numerics;
 
 /**
  * Reads messages from the server and adds them to a queue. Encapsulates the
  * queue to prevent it being read and modified before the parser parses the
- * messages.
+ * messages. Messages the connection depends on (PING, ERROR, CAP and
+ * registration numerics) are handled here as they are read, ahead of the queue, so
+ * keeping the connection alive never waits for the backlog. Messages from
+ * ignored users are dropped here, before they are queued or parsed.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -30,12 +34,26 @@ import com.speed.irc.event.ApiEvent;
  * @author Shivam Mistry
  */
 public class ServerMessageReader implements Runnable {
+	private static final Logger LOGGER = Logger
+			.getLogger(ServerMessageReader.class.getName());
+	/**
+	 * How many other nicks to try when ours is refused before giving up on
+	 * registering.
+	 */
+	private static final int MAX_NICK_ATTEMPTS = 5;
+	/**
+	 * The characters a nick may contain besides letters and digits.
+	 */
+	private static final String NICK_SPECIALS = "[]\\`_^{|}-";
 	private final Server server;
 	private LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
 	private volatile String current;
 	protected volatile boolean running = true;
 	protected Logger logger = Logger.getLogger(Logger.class.getName());
 	protected boolean logging;
+	private final Random random = new Random();
+	private String nickBase;
+	private int nickAttempts;
 
 	/**
 	 * No public access to queue to prevent reading before the parser. Gets the
@@ -79,40 +97,195 @@ public class ServerMessageReader implements Runnable {
 		this.server = server;
 	}
 
+	/**
+	 * Checks a message's prefix against the server's ignore list. Only
+	 * PRIVMSGs and NOTICEs, CTCP included, are dropped: JOINs, KICKs, MODEs
+	 * and the like from an ignored user still have to update the channels.
+	 * 
+	 * @param line
+	 *            the message as read from the server
+	 * @return <tt>true</tt> if the message is a PRIVMSG or NOTICE from an
+	 *         ignored user
+	 */
+	private boolean isIgnored(final String line) {
+		if (server.getIgnoreList().isEmpty()) {
+			return false;
+		}
+		int start = 0;
+		if (line.startsWith("@")) {
+			start = line.indexOf(' ') + 1;
+		}
+		if (start == 0 && !line.startsWith(":") || start > 0
+				&& !line.startsWith(":", start)) {
+			return false;
+		}
+		final int end = line.indexOf(' ', start);
+		final int bang = line.indexOf('!', start);
+		final int at = line.indexOf('@', bang + 1);
+		if (end == -1 || bang == -1 || bang > end || at == -1 || at > end) {
+			return false;
+		}
+		if (!line.startsWith("PRIVMSG ", end + 1)
+				&& !line.startsWith("NOTICE ", end + 1)) {
+			return false;
+		}
+		return server.getIgnoreList().matches(
+				line.substring(start + 1, bang), line.substring(bang + 1, at),
+				line.substring(at + 1, end));
+	}
+
+	/**
+	 * Handles a message the connection depends on before it is queued.
+	 * 
+	 * @param line
+	 *            the message as read from the server
+	 * @return <tt>true</tt> if the message was consumed and should not be
+	 *         queued
+	 */
+	private boolean handlePriority(final String line) {
+		final String message = line.startsWith("@") ? line.substring(line
+				.indexOf(' ') + 1) : line;
+		if (message.startsWith("PING")) {
+			server.sendRawNow("PONG" + message.substring(4));
+			if (logging) {
+				logger.info(line);
+			}
+			return true;
+		}
+		if (message.startsWith("ERROR ") || message.equals("ERROR")) {
+			enqueue(line);
+			closed();
+			return true;
+		}
+		if (!message.startsWith(":")) {
+			return false;
+		}
+		final int start = message.indexOf(' ') + 1;
+		final int end = message.indexOf(' ', start);
+		if (start == 0 || end == -1) {
+			return false;
+		}
+		final String command = message.substring(start, end);
+		if (command.equals("CAP")) {
+			server.getCapabilities().handle(message);
+			return false;
+		}
+		if (server.isRegistered()) {
+			return false;
+		}
+		if (command.equals(Numerics.WELCOME)) {
+			server.setRegistered(true);
+			server.getCapabilities().registered();
+			server.getJoinPipeline().registered();
+			server.getReconnectManager().registered();
+		} else if (command.equals(Numerics.NICKNAME_IN_USE)
+				|| command.equals(Numerics.ERRONEOUS_NICKNAME)) {
+			final String[] params = message.split(" ");
+			nickRefused(command, params.length > 3 ? params[3] : server
+					.getNick());
+		}
+		return false;
+	}
+
+	/**
+	 * Picks another nick when the server refuses one while registering. A
+	 * nick in use gets a suffix, fitted to the server's nick length; an
+	 * invalid nick is cleaned of characters a nick cannot have, or replaced by
+	 * a guest nick, since a suffix would not make it valid. Registration is
+	 * given up after {@link #MAX_NICK_ATTEMPTS} refusals.
+	 */
+	private void nickRefused(final String command, final String refused) {
+		if (nickBase == null) {
+			nickBase = refused;
+		}
+		String nick = null;
+		if (++nickAttempts <= MAX_NICK_ATTEMPTS) {
+			if (command.equals(Numerics.NICKNAME_IN_USE)) {
+				nick = fit(nickBase, nickAttempts == 1 ? "_" : "_"
+						+ nickAttempts);
+			} else {
+				nick = fit(clean(nickBase), "");
+				if (nick.isEmpty() || nick.equalsIgnoreCase(refused)) {
+					nick = refused.startsWith("Guest") ? null : "Guest"
+							+ (10000 + random.nextInt(90000));
+				}
+				nickBase = nick;
+			}
+		}
+		if (nick == null) {
+			LOGGER.warning("Server refused nick " + refused
+					+ ", giving up on registering");
+			server.quit();
+			return;
+		}
+		server.sendRawNow("NICK " + nick);
+	}
+
+	/**
+	 * Shortens a nick so that it fits the server's nick length with a suffix.
+	 */
+	private String fit(final String nick, final String suffix) {
+		final int limit = server.getNickLength() > 0 ? server.getNickLength()
+				: Math.max(9, nick.length() + suffix.length());
+		return nick.substring(0,
+				Math.max(0, Math.min(nick.length(), limit - suffix.length())))
+				+ suffix;
+	}
+
+	private static String clean(final String nick) {
+		final StringBuilder builder = new StringBuilder(nick.length());
+		for (int i = 0; i < nick.length(); i++) {
+			final char c = nick.charAt(i);
+			if (c < 128 && Character.isLetter(c) || NICK_SPECIALS.indexOf(c) != -1
+					&& c != '-' || builder.length() > 0
+					&& (Character.isDigit(c) || c == '-')) {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
 	public void run() {
 		try {
 			while (server.isConnected() && running
 					&& (current = server.getReader().readLine()) != null) {
-				try {
-					queue.add(current);
-				} catch (IllegalStateException e) {
-
-					queue.clear();
-					queue.add(current);
-				}
-				if (logging) {
-					logger.info(current);
-				}
-				if (current.startsWith("ERROR :Closing Link:")) {
-					if (server.autoConnect && running) {
-						try {
-							Thread.sleep(5000);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-						server.connect();
-						server.eventManager.dispatchEvent(new ApiEvent(
-								ApiEvent.SERVER_DISCONNECTED, server, this));
-						break;
-					}
+				if (handlePriority(current) || isIgnored(current)) {
+					continue;
 				}
+				enqueue(current);
 			}
 		} catch (IOException e) {
+			if (logging) {
+				logger.info(e.toString());
+			}
+		}
+		closed();
 
-			server.quit();
+	}
 
+	private void enqueue(final String line) {
+		try {
+			queue.add(line);
+		} catch (IllegalStateException e) {
+
+			queue.clear();
+			queue.add(line);
 		}
+		if (logging) {
+			logger.info(line);
+		}
+	}
 
+	/**
+	 * Stops reading and reports the connection as lost, once. The server
+	 * sends ERROR just before it closes the link, so the closure is reported
+	 * then rather than when the socket read finally fails.
+	 */
+	private void closed() {
+		if (running) {
+			running = false;
+			server.connectionLost();
+		}
 	}
 
 }
@@ -0,0 +1,221 @@
+package com.speed.irc.connection;
+
+import com.speed.irc.types.RawMessage;
+import com.speed.irc.types.ServerUser;
+import com.speed.irc.util.StringPool;
+
+/**
+ * Shares one {@link ServerUser} between the messages of a sender, so that
+ * chatty users and services do not cost a new user and three new Strings per
+ * message. Users are looked up by their <tt>nick!user@host</tt> prefix,
+ * ignoring case, straight from the message they are in; only a miss creates
+ * any objects. The cache has a fixed number of slots and replaces the least
+ * recently used of the few slots a prefix can go in, so it never grows. A
+ * user's entry is dropped when they change nick or quit.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class ServerUserCache {
+	/**
+	 * The number of slots a prefix can be stored in.
+	 */
+	private static final int PROBES = 8;
+
+	private final Server server;
+	private final int mask;
+	private final String[] prefixes;
+	private final ServerUser[] users;
+	private final int[] hashes;
+	private final long[] used;
+	private long clock, hits, misses;
+
+	public ServerUserCache(final Server server) {
+		this(server, 1024);
+	}
+
+	/**
+	 * @param server
+	 *            the server the users are on
+	 * @param capacity
+	 *            the number of users to cache, rounded up to a power of two
+	 */
+	public ServerUserCache(final Server server, final int capacity) {
+		this.server = server;
+		int size = Math.max(PROBES, Integer.highestOneBit(capacity - 1) << 1);
+		mask = size - 1;
+		prefixes = new String[size];
+		users = new ServerUser[size];
+		hashes = new int[size];
+		used = new long[size];
+	}
+
+	/**
+	 * Gets the user a message prefix stands for.
+	 * 
+	 * @param s
+	 *            the text containing the prefix
+	 * @param start
+	 *            the index of the first character of the nick
+	 * @param end
+	 *            the index after the last character of the host
+	 * @return the user, or <tt>null</tt> if the text is not a
+	 *         <tt>nick!user@host</tt> prefix
+	 */
+	public synchronized ServerUser get(final CharSequence s, final int start,
+			final int end) {
+		int bang = -1, at = -1, hash = 0;
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c == '!' && bang == -1) {
+				bang = i;
+			} else if (c == '@' && bang != -1 && at == -1) {
+				at = i;
+			}
+			hash = 31 * hash + Character.toLowerCase(c);
+		}
+		if (bang <= start || at == -1) {
+			return null;
+		}
+		hash ^= hash >>> 16;
+		int victim = -1;
+		for (int i = 0; i < PROBES; i++) {
+			final int slot = (hash + i) & mask;
+			final String prefix = prefixes[slot];
+			if (prefix != null && hashes[slot] == hash
+					&& matches(prefix, s, start, end)) {
+				hits++;
+				used[slot] = ++clock;
+				return users[slot];
+			}
+			if (victim == -1 || used[slot] < used[victim]) {
+				victim = slot;
+			}
+		}
+		misses++;
+		final StringPool pool = server.getStringPool();
+		final String prefix = s.subSequence(start, end).toString();
+		final ServerUser user = new ServerUser(pool.intern(s, start, bang),
+				pool.intern(s, at + 1, end), pool.intern(s, bang + 1, at),
+				server);
+		prefixes[victim] = prefix;
+		users[victim] = user;
+		hashes[victim] = hash;
+		used[victim] = ++clock;
+		return user;
+	}
+
+	/**
+	 * Gets the sender of a message.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return the sender, or <tt>null</tt> if it was not sent by a user
+	 */
+	public ServerUser getSender(final RawMessage message) {
+		final String raw = message.getRaw();
+		final int space = raw.indexOf(' ');
+		return get(raw, 0, space == -1 ? raw.length() : space);
+	}
+
+	private static boolean matches(final String prefix, final CharSequence s,
+			final int start, final int end) {
+		if (prefix.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			final char a = prefix.charAt(i);
+			final char b = s.charAt(start + i);
+			if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the entries of a nick.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 */
+	public synchronized void invalidate(final String nick) {
+		final int length = nick.length();
+		for (int i = 0; i < prefixes.length; i++) {
+			final String prefix = prefixes[i];
+			if (prefix != null && prefix.length() > length
+					&& prefix.charAt(length) == '!'
+					&& prefix.regionMatches(true, 0, nick, 0, length)) {
+				prefixes[i] = null;
+				users[i] = null;
+				used[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Drops every entry.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < prefixes.length; i++) {
+			prefixes[i] = null;
+			users[i] = null;
+			used[i] = 0;
+		}
+	}
+
+	/**
+	 * Gets the number of users the cache can hold.
+	 * 
+	 * @return the capacity of the cache
+	 */
+	public int getCapacity() {
+		return prefixes.length;
+	}
+
+	/**
+	 * Gets the number of lookups that found a cached user.
+	 * 
+	 * @return the number of hits
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups that created a user.
+	 * 
+	 * @return the number of misses
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Drops the entries of users who changed nick or quit.
+	 */
+	void handle(final RawMessage message) {
+		final String code = message.getCommand();
+		if (code.equals("NICK") || code.equals("QUIT")) {
+			final String sender = message.getSender();
+			final int bang = sender.indexOf('!');
+			if (bang != -1) {
+				invalidate(sender.substring(0, bang));
+			}
+		}
+	}
+}
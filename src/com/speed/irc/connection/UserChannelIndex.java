@@ -0,0 +1,119 @@
+package com.speed.irc.connection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.MemberTable;
+
+/**
+ * Maps nicks to the channels they are known to be in, so that a QUIT or a
+ * netsplit can be applied to the affected channels without looking the user up
+ * in every channel. Kept up to date by {@link Channel}. Compact channels are
+ * not indexed per member, which would undo their savings; they are registered
+ * once and asked whether they hold the nick.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class UserChannelIndex {
+	private final Map<String, List<Channel>> index = new HashMap<String, List<Channel>>();
+	private final List<Channel> compact = new ArrayList<Channel>();
+
+	public synchronized void add(final String nick, final Channel channel) {
+		final String key = nick.toLowerCase();
+		List<Channel> channels = index.get(key);
+		if (channels == null) {
+			channels = new ArrayList<Channel>(2);
+			index.put(key, channels);
+		}
+		if (!channels.contains(channel)) {
+			channels.add(channel);
+		}
+	}
+
+	public synchronized void remove(final String nick, final Channel channel) {
+		final String key = nick.toLowerCase();
+		final List<Channel> channels = index.get(key);
+		if (channels != null && channels.remove(channel)
+				&& channels.isEmpty()) {
+			index.remove(key);
+		}
+	}
+
+	/**
+	 * Gets the channels a nick is in.
+	 * 
+	 * @param nick
+	 *            the nick
+	 * @return a copy of the channels, empty if the nick is in none
+	 */
+	public List<Channel> getChannels(final String nick) {
+		final List<Channel> result;
+		final Channel[] tables;
+		synchronized (this) {
+			final List<Channel> channels = index.get(nick.toLowerCase());
+			result = channels == null ? new ArrayList<Channel>(0)
+					: new ArrayList<Channel>(channels);
+			tables = compact.toArray(new Channel[compact.size()]);
+		}
+		for (Channel channel : tables) {
+			final MemberTable members = channel.getMemberTable();
+			if (members != null && members.contains(nick)) {
+				result.add(channel);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Registers a compact channel, whose members are looked up in its
+	 * {@link MemberTable} rather than indexed one by one.
+	 * 
+	 * @param channel
+	 *            the compact channel
+	 */
+	public synchronized void addCompact(final Channel channel) {
+		if (!compact.contains(channel)) {
+			compact.add(channel);
+		}
+	}
+
+	/**
+	 * Forgets every membership of a channel, e.g. when we leave it.
+	 * 
+	 * @param channel
+	 *            the channel
+	 */
+	public synchronized void removeChannel(final Channel channel) {
+		compact.remove(channel);
+		final Iterator<List<Channel>> it = index.values().iterator();
+		while (it.hasNext()) {
+			final List<Channel> channels = it.next();
+			if (channels.remove(channel) && channels.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+}
@@ -0,0 +1,280 @@
+package com.speed.irc.connection;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import com.speed.irc.types.RawMessage;
+import com.speed.irc.types.UserInfo;
+import com.speed.irc.util.Numerics;
+
+/**
+ * Caches what is known about users so that repeated lookups do not each cost a
+ * WHOIS. Entries expire after a time to live, the least recently used entries
+ * are dropped once the cache is full, and a user's entry is dropped when they
+ * change nick, quit, change host or log in or out. Lookups of a nick already
+ * being looked up share the WHOIS in flight.
+ * <p/>
+ * The cache is also filled from JOINs and WHO replies as they are parsed.
+ * These only tell us the user and host, and with <tt>extended-join</tt> the
+ * account and real name too, so entries from a plain JOIN or WHO reply are
+ * returned by {@link #get(String)} but {@link #lookup(String)} still sends a
+ * WHOIS for them.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class UserInfoCache {
+	private final Server server;
+	private final Map<String, CompletableFuture<UserInfo>> inFlight = new HashMap<String, CompletableFuture<UserInfo>>();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+			return size() > maxSize;
+		}
+	};
+	private int maxSize = 10000;
+	private long ttl = TimeUnit.MINUTES.toNanos(5);
+	private long hits, misses;
+
+	public UserInfoCache(final Server server) {
+		this.server = server;
+		server.getCapabilities().request("chghost", "account-notify");
+	}
+
+	/**
+	 * Sets how many users are cached at most.
+	 * 
+	 * @param maxSize
+	 *            the largest number of entries
+	 */
+	public synchronized void setMaxSize(final int maxSize) {
+		this.maxSize = maxSize;
+		final Iterator<String> it = entries.keySet().iterator();
+		while (entries.size() > maxSize && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Sets how long an entry is used for before it is looked up again.
+	 * 
+	 * @param ttl
+	 *            the time to live
+	 * @param unit
+	 *            the unit of the time
+	 */
+	public synchronized void setTimeToLive(final long ttl, final TimeUnit unit) {
+		this.ttl = unit.toNanos(ttl);
+	}
+
+	/**
+	 * Gets what is known about a user without asking the server.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 * @return the cached information, or <tt>null</tt> if there is none or it
+	 *         has expired
+	 */
+	public synchronized UserInfo get(final String nick) {
+		final Entry entry = fresh(nick.toLowerCase());
+		return entry == null ? null : entry.info;
+	}
+
+	/**
+	 * Looks up a user, using the cached information if it came from a WHOIS
+	 * or an extended JOIN and has not expired.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 * @return a future completed with the information about the user
+	 */
+	public CompletableFuture<UserInfo> lookup(final String nick) {
+		final String key = nick.toLowerCase();
+		final CompletableFuture<UserInfo> future;
+		synchronized (this) {
+			final Entry entry = fresh(key);
+			if (entry != null && entry.complete) {
+				hits++;
+				return CompletableFuture.completedFuture(entry.info);
+			}
+			final CompletableFuture<UserInfo> pending = inFlight.get(key);
+			if (pending != null) {
+				hits++;
+				return pending;
+			}
+			misses++;
+			future = server.getRequests().whois(nick);
+			inFlight.put(key, future);
+		}
+		future.whenComplete(new BiConsumer<UserInfo, Throwable>() {
+			public void accept(final UserInfo info, final Throwable failure) {
+				synchronized (UserInfoCache.this) {
+					if (inFlight.get(key) != future) {
+						return;
+					}
+					inFlight.remove(key);
+					if (info != null) {
+						entries.put(key, new Entry(info, true));
+					}
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Drops what is known about a user. A WHOIS for them that is in flight is
+	 * not cached when it completes.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 */
+	public synchronized void invalidate(final String nick) {
+		final String key = nick.toLowerCase();
+		entries.remove(key);
+		inFlight.remove(key);
+	}
+
+	/**
+	 * Drops every entry, as after reconnecting.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		inFlight.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the number of lookups answered from the cache or by a WHOIS
+	 * already in flight.
+	 * 
+	 * @return the number of lookups that sent no WHOIS
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups that sent a WHOIS.
+	 * 
+	 * @return the number of lookups that missed the cache
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	private Entry fresh(final String key) {
+		final Entry entry = entries.get(key);
+		if (entry != null && System.nanoTime() - entry.created > ttl) {
+			entries.remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Fills in a user seen in a JOIN or WHO reply. An entry from a WHOIS is
+	 * kept if the user and host still match.
+	 */
+	private synchronized void fill(final String nick, final String user,
+			final String host, final String account, final String realName,
+			final boolean complete) {
+		final String key = nick.toLowerCase();
+		final Entry old = fresh(key);
+		if (old != null && old.complete && !complete
+				&& user.equals(old.info.getUser())
+				&& host.equals(old.info.getHost())) {
+			return;
+		}
+		final UserInfo info = new UserInfo(nick);
+		info.setUser(user);
+		info.setHost(host);
+		info.setAccount(account);
+		info.setRealName(realName);
+		entries.put(key, new Entry(info, complete));
+	}
+
+	/**
+	 * Updates the cache from a message from the server.
+	 */
+	void handle(final RawMessage message) {
+		final String code = message.getCommand();
+		final String sender = message.getSender();
+		final int bang = sender.indexOf('!');
+		if (code.equals(Numerics.WHO_RESPONSE)) {
+			final String raw = message.getRaw();
+			final String[] params = raw.split(" ");
+			if (params.length > 7) {
+				final String trailing = raw.substring(raw.indexOf(" :") + 2);
+				final int space = trailing.indexOf(' ');
+				fill(params[7], params[4], params[5], null,
+						space == -1 ? null : trailing.substring(space + 1), false);
+			}
+		} else if (bang == -1) {
+			return;
+		} else if (code.equals("JOIN")) {
+			final int at = sender.indexOf('@', bang);
+			if (at == -1) {
+				return;
+			}
+			final String nick = sender.substring(0, bang);
+			final String user = sender.substring(bang + 1, at);
+			final String host = sender.substring(at + 1);
+			final String[] params = message.getRaw().split(" ", 5);
+			if (params.length > 3 && !params[2].startsWith(":")) {
+				final String account = params[3].equals("*") ? null : params[3];
+				final String realName = params.length > 4
+						&& params[4].startsWith(":") ? params[4].substring(1)
+						: null;
+				fill(nick, user, host, account, realName, true);
+			} else {
+				fill(nick, user, host, message.getAccount(), null, false);
+			}
+		} else if (code.equals("NICK")) {
+			invalidate(sender.substring(0, bang));
+			final String target = message.getTarget();
+			if (target != null) {
+				invalidate(target.startsWith(":") ? target.substring(1) : target);
+			}
+		} else if (code.equals("QUIT") || code.equals("CHGHOST")
+				|| code.equals("ACCOUNT")) {
+			invalidate(sender.substring(0, bang));
+		}
+	}
+
+	private static class Entry {
+		private final UserInfo info;
+		private final boolean complete;
+		private final long created = System.nanoTime();
+
+		private Entry(final UserInfo info, final boolean complete) {
+			this.info = info;
+			this.complete = complete;
+		}
+	}
+}
@@ -27,6 +27,14 @@ public class ApiEvent implements IRCEvent {
 
 	public static final int SERVER_QUIT = 3;
 
+	/**
+	 * Dispatched once every channel joined on connecting has been joined or
+	 * refused.
+	 * 
+	 * @see com.speed.irc.connection.JoinPipeline#getJoinTime()
+	 */
+	public static final int CHANNELS_JOINED = 4;
+
 	private int opcode;
 	private Server server;
 	private Object source;
@@ -41,7 +49,8 @@ public class ApiEvent implements IRCEvent {
 	 * Gets the opcode of the event.
 	 * 
 	 * @see {@link ApiEvent#SERVER_DISCONNECTED},
-	 *      {@link ApiEvent#EXCEPTION_RECEIVED}, {@link ApiEvent#SERVER_QUIT}
+	 *      {@link ApiEvent#EXCEPTION_RECEIVED}, {@link ApiEvent#SERVER_QUIT},
+	 *      {@link ApiEvent#CHANNELS_JOINED}
 	 * @return the opcode of this event
 	 */
 	public int getOpcode() {
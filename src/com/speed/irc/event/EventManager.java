@@ -1,12 +1,39 @@
 package com.speed.irc.event;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.speed.irc.types.NOTICE;
+import com.speed.irc.types.PRIVMSG;
 
 /**
- * Manages events.
+ * Manages events. By default every event is processed in order on the thread
+ * running this manager. When dispatch lanes are enabled, events are hashed by
+ * channel (or by nick for private messages) onto a fixed number of lanes, each
+ * with its own thread, so events for one channel stay in order while unrelated
+ * channels are handled in parallel. Events with no channel or nick, such as
+ * {@link ApiEvent}s, go to a separate global lane.
+ * <p/>
+ * Listeners added with {@link #addIsolatedListener(IRCEventListener,
+ * ListenerIsolation)} are not called on the dispatching thread at all; each
+ * invocation runs on the listener executor (virtual threads where the runtime
+ * provides them) so blocking listeners cannot stall the rest of the pipeline.
+ * <p/>
+ * Handlers can also be subscribed to a single event type with
+ * {@link #on(Class)}; their filters are evaluated here, before any handler is
+ * called.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -29,6 +56,24 @@ public class EventManager implements Runnable {
 
 	private List<IRCEventListener> listeners = new CopyOnWriteArrayList<IRCEventListener>();
 	private BlockingQueue<IRCEvent> eventQueue = new LinkedBlockingQueue<IRCEvent>();
+	private volatile ExecutorService[] lanes;
+	private volatile ExecutorService globalLane;
+	private final Map<IRCEventListener, IsolatedListener> isolated = new ConcurrentHashMap<IRCEventListener, IsolatedListener>();
+	private ExecutorService listenerExecutor;
+	private ScheduledExecutorService watchdog;
+	private boolean shutdown;
+	private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+	private final Map<Class<?>, Boolean> demand = new ConcurrentHashMap<Class<?>, Boolean>();
+	/**
+	 * Held while the queue is being processed, so that only one thread calls
+	 * the listeners with queued events at a time.
+	 */
+	private final Object runLock = new Object();
+	/**
+	 * Lanes replaced by {@link #setDispatchLanes(int)} that may still be
+	 * delivering events; newer events wait for them.
+	 */
+	private final ConcurrentLinkedQueue<ExecutorService> retired = new ConcurrentLinkedQueue<ExecutorService>();
 
 	/**
 	 * @deprecated see {@link #dispatchEvent(IRCEvent)} instead
@@ -39,13 +84,30 @@ public class EventManager implements Runnable {
 	}
 
 	/**
-	 * Adds an event to the event queue.
+	 * Adds an event to the event queue, or to its dispatch lane if lanes are
+	 * enabled. Events no listener or subscription would receive are dropped.
 	 * 
 	 * @param event
 	 *            the event to be processed by the event queue.
 	 */
 	public synchronized void dispatchEvent(final IRCEvent event) {
-		eventQueue.add(event);
+		if (!isSubscribed(event.getClass())) {
+			return;
+		}
+		final ExecutorService[] lanes = this.lanes;
+		if (lanes == null) {
+			eventQueue.add(event);
+			return;
+		}
+		final String key = getPartitionKey(event);
+		final ExecutorService lane = key == null ? globalLane
+				: lanes[(key.toLowerCase().hashCode() & 0x7fffffff)
+						% lanes.length];
+		lane.execute(new Runnable() {
+			public void run() {
+				callListeners(event);
+			}
+		});
 	}
 
 	/**
@@ -56,34 +118,416 @@ public class EventManager implements Runnable {
 	 */
 	public synchronized void addListener(final IRCEventListener listener) {
 		listeners.add(listener);
+		demand.clear();
+	}
+
+	/**
+	 * Removes an event listener from this event manager.
+	 * 
+	 * @param listener
+	 *            the listener to be removed
+	 * @return <tt>true</tt> if the listener was registered
+	 */
+	public synchronized boolean removeListener(final IRCEventListener listener) {
+		isolated.remove(listener);
+		demand.clear();
+		return listeners.remove(listener);
+	}
+
+	/**
+	 * Checks whether any listener or subscription could receive an event of a
+	 * type. Event generators use this to avoid creating events nobody will
+	 * receive. The answer is cached until listeners or subscriptions change.
+	 * It is worked out under the same lock the listeners and subscriptions
+	 * are changed under, so an answer computed before a change cannot be
+	 * cached after it.
+	 * 
+	 * @param type
+	 *            the event type
+	 * @return <tt>true</tt> if events of the type may be received
+	 */
+	public boolean isSubscribed(final Class<? extends IRCEvent> type) {
+		final Boolean subscribed = demand.get(type);
+		if (subscribed != null) {
+			return subscribed;
+		}
+		synchronized (this) {
+			Boolean computed = demand.get(type);
+			if (computed == null) {
+				computed = computeDemand(type);
+				demand.put(type, computed);
+			}
+			return computed;
+		}
+	}
+
+	private boolean computeDemand(final Class<? extends IRCEvent> type) {
+		if (subscriptions.isSubscribed(type)) {
+			return true;
+		}
+		for (IRCEventListener listener : listeners) {
+			for (Class<?> clz : listener.getClass().getInterfaces()) {
+				final ListenerProperties properties = clz
+						.getAnnotation(ListenerProperties.class);
+				if (properties == null) {
+					continue;
+				}
+				for (Class<? extends IRCEvent> clazz : properties.events()) {
+					if (type.isAssignableFrom(clazz)
+							|| clazz.isAssignableFrom(type)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	synchronized void subscriptionsChanged() {
+		demand.clear();
+	}
+
+	/**
+	 * Starts a subscription to a type of event. The subscription receives
+	 * nothing until it is registered with
+	 * {@link Subscription#handle(EventHandler)}.
+	 * 
+	 * @param type
+	 *            the type of event, subclasses are also received
+	 * @return the unregistered subscription, to add filters to
+	 */
+	public <E extends IRCEvent> Subscription<E> on(final Class<E> type) {
+		return new Subscription<E>(this, type);
+	}
+
+	SubscriptionIndex getSubscriptions() {
+		return subscriptions;
+	}
+
+	/**
+	 * Adds an event listener whose invocations run on the listener executor
+	 * instead of the dispatching thread.
+	 * 
+	 * @param listener
+	 *            the listener to be added to this event manager
+	 * @param isolation
+	 *            the concurrency cap and timeouts for the listener
+	 * @return the isolated listener, which holds its invocation counters
+	 */
+	public synchronized IsolatedListener addIsolatedListener(
+			final IRCEventListener listener, final ListenerIsolation isolation) {
+		final IsolatedListener l = new IsolatedListener(listener, isolation,
+				this);
+		isolated.put(listener, l);
+		listeners.add(listener);
+		demand.clear();
+		return l;
+	}
+
+	/**
+	 * Gets the isolated listener for a listener.
+	 * 
+	 * @param listener
+	 *            a listener added with
+	 *            {@link #addIsolatedListener(IRCEventListener, ListenerIsolation)}
+	 * @return the isolated listener, or <tt>null</tt> if the listener is not
+	 *         isolated
+	 */
+	public IsolatedListener getIsolatedListener(final IRCEventListener listener) {
+		return isolated.get(listener);
+	}
+
+	/**
+	 * Gets the executor isolated listeners run on, creating it if needed.
+	 * 
+	 * @return the executor, or <tt>null</tt> once this manager is shut down
+	 */
+	synchronized ExecutorService getListenerExecutor() {
+		if (listenerExecutor == null && !shutdown) {
+			listenerExecutor = createListenerExecutor();
+		}
+		return listenerExecutor;
+	}
+
+	synchronized ScheduledExecutorService getWatchdog() {
+		if (watchdog == null && !shutdown) {
+			watchdog = Executors.newSingleThreadScheduledExecutor(daemonFactory("Listener watchdog"));
+		}
+		return watchdog;
 	}
 
+	/**
+	 * Creates a virtual thread per task executor when the runtime supports
+	 * virtual threads, otherwise a cached pool of daemon threads.
+	 */
+	private static ExecutorService createListenerExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(daemonFactory("Listener worker"));
+		}
+	}
+
+	/**
+	 * Enables or disables partitioned dispatch. Events dispatched before the
+	 * change are delivered before any dispatched after it: the new lanes, or
+	 * the event queue if lanes are disabled, hold back until the old lanes
+	 * have delivered their events and the queue has been drained.
+	 * 
+	 * @param count
+	 *            the number of channel lanes to dispatch on, or 0 to process
+	 *            every event on the thread running this manager
+	 */
+	public synchronized void setDispatchLanes(final int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("lane count: " + count);
+		}
+		if (lanes != null) {
+			retired.addAll(Arrays.asList(lanes));
+			retired.add(globalLane);
+		}
+		shutdownLanes();
+		if (count == 0) {
+			return;
+		}
+		final ExecutorService[] lanes = new ExecutorService[count];
+		for (int i = 0; i < count; i++) {
+			lanes[i] = Executors.newSingleThreadExecutor(daemonFactory("Event lane "
+					+ i));
+		}
+		globalLane = Executors
+				.newSingleThreadExecutor(daemonFactory("Event lane global"));
+		final ExecutorService[] previous = retired
+				.toArray(new ExecutorService[0]);
+		final List<IRCEvent> queued = new ArrayList<IRCEvent>();
+		eventQueue.drainTo(queued);
+		final Runnable drain = new Runnable() {
+			public void run() {
+				if (await(previous)) {
+					synchronized (runLock) {
+						for (IRCEvent e : queued) {
+							callListeners(e);
+						}
+						queued.clear();
+					}
+				}
+			}
+		};
+		for (ExecutorService lane : lanes) {
+			lane.execute(drain);
+		}
+		globalLane.execute(drain);
+		this.lanes = lanes;
+	}
+
+	/**
+	 * Gets the number of channel lanes events are dispatched on.
+	 * 
+	 * @return the lane count, 0 if partitioned dispatch is disabled
+	 */
+	public int getDispatchLanes() {
+		final ExecutorService[] lanes = this.lanes;
+		return lanes == null ? 0 : lanes.length;
+	}
+
+	/**
+	 * Stops the dispatch lanes, if any, and interrupts running isolated
+	 * listeners. Events already handed to a lane are still delivered, but
+	 * isolated listeners are not given any more events.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		shutdownLanes();
+		if (listenerExecutor != null) {
+			listenerExecutor.shutdownNow();
+			listenerExecutor = null;
+		}
+		if (watchdog != null) {
+			watchdog.shutdownNow();
+			watchdog = null;
+		}
+	}
+
+	/**
+	 * Delivers the events still queued and then shuts down, letting the lanes
+	 * and isolated listeners finish the events they were given until the
+	 * timeout, after which they are interrupted.
+	 * 
+	 * @param timeout
+	 *            the longest time to wait for events to be delivered
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return <tt>true</tt> if every event was delivered in time
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean shutdown(final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		run();
+		final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+		synchronized (this) {
+			if (lanes != null) {
+				executors.addAll(Arrays.asList(lanes));
+				executors.add(globalLane);
+			}
+			shutdownLanes();
+		}
+		boolean drained = true;
+		for (ExecutorService executor : executors) {
+			drained &= executor.awaitTermination(
+					deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		final ExecutorService listenerExecutor;
+		synchronized (this) {
+			listenerExecutor = this.listenerExecutor;
+		}
+		if (listenerExecutor != null) {
+			listenerExecutor.shutdown();
+			drained &= listenerExecutor.awaitTermination(deadline
+					- System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		shutdown();
+		return drained;
+	}
+
+	private void shutdownLanes() {
+		if (lanes == null) {
+			return;
+		}
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+		globalLane.shutdown();
+		lanes = null;
+		globalLane = null;
+	}
+
+	private static ThreadFactory daemonFactory(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Gets the key an event is partitioned on: the channel for channel events
+	 * and channel messages, the other party's nick for private messages.
+	 * 
+	 * @param e
+	 *            the event
+	 * @return the partition key, or <tt>null</tt> for the global lane
+	 */
+	protected String getPartitionKey(final IRCEvent e) {
+		if (e instanceof ChannelEvent) {
+			return ((ChannelEvent) e).getChannel().getName();
+		} else if (e instanceof PrivateMessageEvent) {
+			final PRIVMSG message = ((PrivateMessageEvent) e).getMessage();
+			return message.getConversable() != null ? message
+					.getConversable().getName() : message.getSender();
+		} else if (e instanceof NoticeEvent) {
+			final NOTICE notice = ((NoticeEvent) e).getNotice();
+			return notice.getChannel() != null ? notice.getChannel() : notice
+					.getSender();
+		} else if (e instanceof RawMessageEvent) {
+			return ((RawMessageEvent) e).getMessage().getTarget();
+		}
+		return null;
+	}
+
+	/**
+	 * Delivers the queued events. This runs on the dispatch thread shared by
+	 * every server, so it never waits for replaced lanes: while one is still
+	 * delivering, the queue is left for a later run.
+	 */
 	public void run() {
-		IRCEvent e = null;
-		e = eventQueue.poll();
-		if (e != null) {
-			for (IRCEventListener listener : listeners) {
-				for (Class<?> clz : listener.getClass().getInterfaces()) {
-					if (clz.getAnnotation(ListenerProperties.class) == null) {
-						continue;
-					} else {
-						try {
-							ListenerProperties properties = clz
-									.getAnnotation(ListenerProperties.class);
-							for (Class<? extends IRCEvent> clazz : properties
-									.events()) {
-								if (e.getClass().isAssignableFrom(clazz)) {
+		if (!pruneRetired()) {
+			return;
+		}
+		synchronized (runLock) {
+			IRCEvent e;
+			while ((e = nextQueued()) != null) {
+				callListeners(e);
+			}
+		}
+	}
+
+	/**
+	 * Forgets replaced lanes that have delivered their events.
+	 * 
+	 * @return <tt>true</tt> if none are left delivering
+	 */
+	private boolean pruneRetired() {
+		for (ExecutorService lane : retired) {
+			if (!lane.isTerminated()) {
+				return false;
+			}
+			retired.remove(lane);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the next queued event, unless lanes replaced since it was queued
+	 * have to deliver their events first.
+	 */
+	private synchronized IRCEvent nextQueued() {
+		return retired.isEmpty() ? eventQueue.poll() : null;
+	}
+
+	/**
+	 * Waits on a new lane's thread for replaced lanes to deliver their events.
+	 * They are waited for without holding the run lock, as they may be waiting
+	 * for it themselves.
+	 * 
+	 * @return <tt>false</tt> if interrupted while waiting
+	 */
+	private boolean await(final ExecutorService[] lanes) {
+		try {
+			for (ExecutorService lane : lanes) {
+				lane.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+				retired.remove(lane);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void callListeners(final IRCEvent e) {
+		for (IRCEventListener listener : listeners) {
+			for (Class<?> clz : listener.getClass().getInterfaces()) {
+				if (clz.getAnnotation(ListenerProperties.class) == null) {
+					continue;
+				} else {
+					try {
+						ListenerProperties properties = clz
+								.getAnnotation(ListenerProperties.class);
+						for (Class<? extends IRCEvent> clazz : properties
+								.events()) {
+							if (e.getClass().isAssignableFrom(clazz)) {
+								final IsolatedListener l = isolated
+										.get(listener);
+								if (l != null) {
+									l.submit(e);
+								} else {
 									e.callListener(listener);
 								}
 							}
-						} catch (Exception e1) {
-							this.dispatchEvent(new ExceptionEvent(e1, this, null));
-							e1.printStackTrace();
 						}
+					} catch (Exception e1) {
+						this.dispatchEvent(new ExceptionEvent(e1, this, null));
+						e1.printStackTrace();
 					}
 				}
 			}
 		}
+		subscriptions.dispatch(e);
 	}
 
 	/**
@@ -0,0 +1,77 @@
+package com.speed.irc.event;
+
+import com.speed.irc.connection.Server;
+
+/**
+ * Represents the start or end of an automatic ignore placed on a flooding
+ * host or host mask.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class FloodEvent implements IRCEvent {
+	public static final int IGNORE_STARTED = 0, IGNORE_ENDED = 1;
+
+	private final int code;
+	private final String mask;
+	private final Server server;
+	private final Object source;
+
+	public FloodEvent(final int code, final String mask, final Server server,
+			final Object source) {
+		this.code = code;
+		this.mask = mask;
+		this.server = server;
+		this.source = source;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Gets the host, or host mask such as <tt>*.example.com</tt>, that is
+	 * ignored.
+	 * 
+	 * @return the ignored host or mask
+	 */
+	public String getMask() {
+		return mask;
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	public Object getSource() {
+		return source;
+	}
+
+	public void callListener(final IRCEventListener listener) {
+		if (listener instanceof FloodListener) {
+			final FloodListener l = (FloodListener) listener;
+			switch (code) {
+			case IGNORE_STARTED:
+				l.floodIgnoreStarted(this);
+				break;
+			case IGNORE_ENDED:
+				l.floodIgnoreEnded(this);
+				break;
+			}
+		}
+	}
+}
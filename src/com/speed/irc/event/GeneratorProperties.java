@@ -0,0 +1,38 @@
+package com.speed.irc.event;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Describes the events an {@link EventGenerator} produces, so the parser can
+ * skip generators whose events nobody is subscribed to. Generators without
+ * this annotation are always run.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+@Retention(value = RetentionPolicy.RUNTIME)
+public @interface GeneratorProperties {
+	Class<? extends IRCEvent>[] events();
+
+	/**
+	 * Whether the generator updates the state of the API (channels, users,
+	 * modes, replies) as well as producing events. Such generators are run even
+	 * when no one is subscribed to their events.
+	 */
+	boolean updatesState() default false;
+}
@@ -0,0 +1,207 @@
+package com.speed.irc.event;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A listener whose invocations run off the event thread, on the event
+ * manager's listener executor. Holds the invocation counters of the listener.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class IsolatedListener {
+	private final IRCEventListener listener;
+	private final ListenerIsolation isolation;
+	private final EventManager manager;
+	private final Queue<IRCEvent> pending = new LinkedList<IRCEvent>();
+	private int running;
+	private final AtomicLong invocations = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong slowInvocations = new AtomicLong();
+
+	IsolatedListener(final IRCEventListener listener,
+			final ListenerIsolation isolation, final EventManager manager) {
+		this.listener = listener;
+		this.isolation = isolation;
+		this.manager = manager;
+	}
+
+	public IRCEventListener getListener() {
+		return listener;
+	}
+
+	public ListenerIsolation getIsolation() {
+		return isolation;
+	}
+
+	/**
+	 * Gets the number of invocations that have completed, failed or timed out.
+	 * 
+	 * @return the number of finished invocations
+	 */
+	public long getInvocations() {
+		return invocations.get();
+	}
+
+	/**
+	 * Gets the number of invocations that threw an exception.
+	 * 
+	 * @return the number of failed invocations
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Gets the number of invocations that were interrupted for exceeding the
+	 * timeout.
+	 * 
+	 * @return the number of timed out invocations
+	 */
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Gets the number of invocations that took longer than the slow threshold.
+	 * 
+	 * @return the number of slow invocations
+	 */
+	public long getSlowInvocations() {
+		return slowInvocations.get();
+	}
+
+	/**
+	 * Gets the number of events waiting for a free invocation slot.
+	 * 
+	 * @return the number of pending events
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	void submit(final IRCEvent e) {
+		synchronized (this) {
+			pending.add(e);
+		}
+		drain();
+	}
+
+	private synchronized void drain() {
+		while (running < isolation.getMaxConcurrency() && !pending.isEmpty()) {
+			final ExecutorService executor = manager.getListenerExecutor();
+			final ScheduledExecutorService watchdog = isolation.getTimeout() > 0
+					? manager.getWatchdog() : null;
+			if (executor == null) {
+				pending.clear();
+				return;
+			}
+			final Invocation invocation = new Invocation(pending.poll());
+			try {
+				invocation.future = executor.submit(invocation);
+			} catch (RejectedExecutionException e) {
+				pending.clear();
+				return;
+			}
+			running++;
+			if (watchdog != null) {
+				try {
+					invocation.watchdog = watchdog.schedule(new Runnable() {
+						public void run() {
+							invocation.timeout();
+						}
+					}, isolation.getTimeout(), TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					// shutting down, which interrupts the invocation anyway
+				}
+			}
+		}
+	}
+
+	private void release() {
+		synchronized (this) {
+			running--;
+		}
+		drain();
+	}
+
+	private class Invocation implements Runnable {
+		private final IRCEvent event;
+		private final AtomicBoolean finished = new AtomicBoolean();
+		/**
+		 * Set by whichever of the invocation and its timeout comes first, so
+		 * that the slot is released once the listener has actually returned,
+		 * or by the timeout if the invocation never got to start.
+		 */
+		private final AtomicBoolean started = new AtomicBoolean();
+		private volatile Future<?> future;
+		private volatile Future<?> watchdog;
+
+		private Invocation(final IRCEvent event) {
+			this.event = event;
+		}
+
+		public void run() {
+			if (!started.compareAndSet(false, true)) {
+				return;
+			}
+			final long start = System.nanoTime();
+			try {
+				event.callListener(listener);
+			} catch (Exception e) {
+				failures.incrementAndGet();
+				if (!(event instanceof ExceptionEvent)) {
+					manager.dispatchEvent(new ExceptionEvent(e,
+							IsolatedListener.this, null));
+				}
+			} finally {
+				if (finished.compareAndSet(false, true)) {
+					if (watchdog != null) {
+						watchdog.cancel(false);
+					}
+					if (System.nanoTime() - start > TimeUnit.MILLISECONDS
+							.toNanos(isolation.getSlowThreshold())) {
+						slowInvocations.incrementAndGet();
+					}
+					invocations.incrementAndGet();
+				}
+				release();
+			}
+		}
+
+		private void timeout() {
+			if (finished.compareAndSet(false, true)) {
+				timeouts.incrementAndGet();
+				slowInvocations.incrementAndGet();
+				invocations.incrementAndGet();
+				future.cancel(true);
+				if (started.compareAndSet(false, true)) {
+					release();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.speed.irc.event;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how an isolated listener is invoked: how many invocations may run
+ * at once, how long one may run before it is interrupted and how long one may
+ * take before it is counted as slow.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class ListenerIsolation {
+	private final int maxConcurrency;
+	private final long timeout;
+	private final long slowThreshold;
+
+	/**
+	 * One invocation at a time, in event order, interrupted after 30 seconds
+	 * and counted as slow after one second.
+	 */
+	public static final ListenerIsolation DEFAULT = new ListenerIsolation(1,
+			30000, 1000, TimeUnit.MILLISECONDS);
+
+	/**
+	 * 
+	 * @param maxConcurrency
+	 *            the maximum number of invocations of the listener running at
+	 *            once; 1 delivers events strictly in order
+	 * @param timeout
+	 *            how long an invocation may run before it is interrupted, 0 for
+	 *            no limit
+	 * @param slowThreshold
+	 *            how long an invocation may run before it is counted as slow
+	 * @param unit
+	 *            the unit of the timeout and slow threshold
+	 */
+	public ListenerIsolation(final int maxConcurrency, final long timeout,
+			final long slowThreshold, final TimeUnit unit) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("max concurrency: "
+					+ maxConcurrency);
+		}
+		this.maxConcurrency = maxConcurrency;
+		this.timeout = unit.toMillis(timeout);
+		this.slowThreshold = unit.toMillis(slowThreshold);
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * Gets the invocation timeout.
+	 * 
+	 * @return the timeout in milliseconds, 0 for no limit
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Gets the duration after which an invocation is counted as slow.
+	 * 
+	 * @return the slow threshold in milliseconds
+	 */
+	public long getSlowThreshold() {
+		return slowThreshold;
+	}
+}
@@ -0,0 +1,90 @@
+package com.speed.irc.event;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.speed.irc.connection.Server;
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelUser;
+
+/**
+ * Represents a group of users that rejoined the network after a netsplit,
+ * reported as one event instead of one event per user and channel.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class NetjoinEvent implements IRCEvent {
+	private final Server server;
+	private final String servers;
+	private final Set<String> nicks;
+	private final Map<Channel, List<ChannelUser>> users;
+	private final Object source;
+
+	public NetjoinEvent(final Server server, final String servers,
+			final Set<String> nicks,
+			final Map<Channel, List<ChannelUser>> users,
+			final Object source) {
+		this.server = server;
+		this.servers = servers;
+		this.nicks = nicks;
+		this.users = users;
+		this.source = source;
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Gets the two servers the split was between, separated by a space.
+	 * 
+	 * @return the servers, or <tt>null</tt> if the server did not say
+	 */
+	public String getServers() {
+		return servers;
+	}
+
+	/**
+	 * Gets the nicks of the users.
+	 * 
+	 * @return the nicks
+	 */
+	public Set<String> getNicks() {
+		return nicks;
+	}
+
+	/**
+	 * Gets the users added to each channel.
+	 * 
+	 * @return the users, by channel
+	 */
+	public Map<Channel, List<ChannelUser>> getAddedUsers() {
+		return users;
+	}
+
+	public Object getSource() {
+		return source;
+	}
+
+	public void callListener(final IRCEventListener listener) {
+		if (listener instanceof NetsplitListener) {
+			((NetsplitListener) listener).netjoin(this);
+		}
+	}
+}
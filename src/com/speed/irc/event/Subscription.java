@@ -0,0 +1,175 @@
+package com.speed.irc.event;
+
+import java.util.regex.Pattern;
+
+/**
+ * A subscription to one type of event, narrowed by filters. Obtain one from
+ * {@link EventManager#on(Class)}, add filters, then register it with
+ * {@link #handle(EventHandler)}:
+ * 
+ * <pre>
+ * manager.on(PrivateMessageEvent.class).channel(&quot;#irc&quot;).command(&quot;!seen&quot;)
+ * 		.handle(handler);
+ * </pre>
+ * 
+ * The channel and command filters are indexed by the event manager, so an
+ * event is only offered to subscriptions whose channel and command match it.
+ * Filters that an event type has no value for (such as a channel filter on a
+ * private message) never match.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class Subscription<E extends IRCEvent> {
+	private final EventManager manager;
+	private final Class<E> type;
+	private String channel;
+	private String command;
+	private String sender;
+	private Pattern pattern;
+	private EventHandler<? super E> handler;
+
+	Subscription(final EventManager manager, final Class<E> type) {
+		this.manager = manager;
+		this.type = type;
+	}
+
+	/**
+	 * Only receive events for a channel.
+	 * 
+	 * @param channel
+	 *            the channel name, compared ignoring case
+	 * @return this subscription
+	 */
+	public Subscription<E> channel(final String channel) {
+		checkUnregistered();
+		this.channel = channel.toLowerCase();
+		return this;
+	}
+
+	/**
+	 * Only receive messages whose first word is a command, e.g.
+	 * <tt>!help</tt>.
+	 * 
+	 * @param command
+	 *            the command, compared ignoring case
+	 * @return this subscription
+	 */
+	public Subscription<E> command(final String command) {
+		checkUnregistered();
+		this.command = command.toLowerCase();
+		return this;
+	}
+
+	/**
+	 * Only receive events caused by a nick.
+	 * 
+	 * @param nick
+	 *            the nick, compared ignoring case
+	 * @return this subscription
+	 */
+	public Subscription<E> sender(final String nick) {
+		checkUnregistered();
+		this.sender = nick;
+		return this;
+	}
+
+	/**
+	 * Only receive messages containing a match for a pattern.
+	 * 
+	 * @param pattern
+	 *            the pattern to find in the message text
+	 * @return this subscription
+	 */
+	public Subscription<E> matching(final Pattern pattern) {
+		checkUnregistered();
+		this.pattern = pattern;
+		return this;
+	}
+
+	/**
+	 * Only receive messages containing a match for a regular expression.
+	 * 
+	 * @param regex
+	 *            the regular expression to find in the message text
+	 * @return this subscription
+	 */
+	public Subscription<E> matching(final String regex) {
+		return matching(Pattern.compile(regex));
+	}
+
+	/**
+	 * Registers this subscription with the event manager.
+	 * 
+	 * @param handler
+	 *            the handler to call for every matching event
+	 * @return this subscription, which can later be cancelled
+	 */
+	public Subscription<E> handle(final EventHandler<? super E> handler) {
+		checkUnregistered();
+		this.handler = handler;
+		manager.getSubscriptions().add(this);
+		manager.subscriptionsChanged();
+		return this;
+	}
+
+	/**
+	 * Stops delivering events to this subscription's handler.
+	 */
+	public void cancel() {
+		manager.getSubscriptions().remove(this);
+		manager.subscriptionsChanged();
+	}
+
+	private void checkUnregistered() {
+		if (handler != null) {
+			throw new IllegalStateException("subscription already registered");
+		}
+	}
+
+	public Class<E> getType() {
+		return type;
+	}
+
+	String getChannel() {
+		return channel;
+	}
+
+	String getCommand() {
+		return command;
+	}
+
+	/**
+	 * Checks the filters that are not covered by the index and calls the
+	 * handler.
+	 */
+	void offer(final IRCEvent event, final String sender, final String text) {
+		if (this.sender != null
+				&& (sender == null || !this.sender.equalsIgnoreCase(sender))) {
+			return;
+		}
+		if (pattern != null && (text == null || !pattern.matcher(text).find())) {
+			return;
+		}
+		try {
+			handler.handle(type.cast(event));
+		} catch (Exception e) {
+			manager.dispatchEvent(new ExceptionEvent(e, this, null));
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.speed.irc.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.NOTICE;
+import com.speed.irc.types.PRIVMSG;
+
+/**
+ * Indexes subscriptions by event type, channel and command, so that an event
+ * is only offered to the subscriptions that can match it.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+class SubscriptionIndex {
+	private static final String ANY = "";
+
+	private final Map<Class<?>, Class<?>[]> hierarchies = new ConcurrentHashMap<Class<?>, Class<?>[]>();
+	private final Map<Class<?>, Map<String, Map<String, List<Subscription<?>>>>> index = new ConcurrentHashMap<Class<?>, Map<String, Map<String, List<Subscription<?>>>>>();
+
+	synchronized void add(final Subscription<?> subscription) {
+		Map<String, Map<String, List<Subscription<?>>>> channels = index
+				.get(subscription.getType());
+		if (channels == null) {
+			channels = new ConcurrentHashMap<String, Map<String, List<Subscription<?>>>>();
+			index.put(subscription.getType(), channels);
+		}
+		final String channel = key(subscription.getChannel());
+		Map<String, List<Subscription<?>>> commands = channels.get(channel);
+		if (commands == null) {
+			commands = new ConcurrentHashMap<String, List<Subscription<?>>>();
+			channels.put(channel, commands);
+		}
+		final String command = key(subscription.getCommand());
+		List<Subscription<?>> list = commands.get(command);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<Subscription<?>>();
+			commands.put(command, list);
+		}
+		list.add(subscription);
+	}
+
+	synchronized void remove(final Subscription<?> subscription) {
+		final Map<String, Map<String, List<Subscription<?>>>> channels = index
+				.get(subscription.getType());
+		if (channels == null) {
+			return;
+		}
+		final String channel = key(subscription.getChannel());
+		final Map<String, List<Subscription<?>>> commands = channels
+				.get(channel);
+		if (commands == null) {
+			return;
+		}
+		final String command = key(subscription.getCommand());
+		final List<Subscription<?>> list = commands.get(command);
+		if (list == null || !list.remove(subscription) || !list.isEmpty()) {
+			return;
+		}
+		commands.remove(command);
+		if (commands.isEmpty()) {
+			channels.remove(channel);
+			if (channels.isEmpty()) {
+				index.remove(subscription.getType());
+			}
+		}
+	}
+
+	boolean isEmpty() {
+		return index.isEmpty();
+	}
+
+	/**
+	 * Checks whether any subscription could receive events of a type.
+	 */
+	boolean isSubscribed(final Class<?> type) {
+		for (Class<?> c : index.keySet()) {
+			if (c.isAssignableFrom(type) || type.isAssignableFrom(c)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Offers an event to every subscription for its type, or a supertype, whose
+	 * channel and command match.
+	 */
+	void dispatch(final IRCEvent event) {
+		if (index.isEmpty()) {
+			return;
+		}
+		String channel = null, sender = null, text = null;
+		if (event instanceof PrivateMessageEvent) {
+			final PRIVMSG message = ((PrivateMessageEvent) event).getMessage();
+			if (message.getConversable() instanceof Channel) {
+				channel = message.getConversable().getName();
+			}
+			sender = message.getSender();
+			text = message.getMessage();
+		} else if (event instanceof NoticeEvent) {
+			final NOTICE notice = ((NoticeEvent) event).getNotice();
+			channel = notice.getChannel();
+			sender = notice.getSender();
+			text = notice.getMessage();
+		} else if (event instanceof ChannelEvent) {
+			channel = ((ChannelEvent) event).getChannel().getName();
+			if (event instanceof ChannelUserEvent
+					&& ((ChannelUserEvent) event).getUser() != null) {
+				sender = ((ChannelUserEvent) event).getUser().getNick();
+			}
+		} else if (event instanceof RawMessageEvent) {
+			text = ((RawMessageEvent) event).getMessage().getRaw();
+		}
+		final String channelKey = channel == null ? null : channel
+				.toLowerCase();
+		String command = null;
+		if (text != null && !(event instanceof RawMessageEvent)) {
+			final int space = text.indexOf(' ');
+			command = (space == -1 ? text : text.substring(0, space))
+					.toLowerCase();
+		}
+		for (Class<?> c : getHierarchy(event.getClass())) {
+			final Map<String, Map<String, List<Subscription<?>>>> channels = index
+					.get(c);
+			if (channels == null) {
+				continue;
+			}
+			if (channelKey != null) {
+				offer(channels.get(channelKey), command, event, sender, text);
+			}
+			offer(channels.get(ANY), command, event, sender, text);
+		}
+	}
+
+	/**
+	 * Gets an event class with all its event superclasses and interfaces.
+	 */
+	private Class<?>[] getHierarchy(final Class<?> type) {
+		Class<?>[] hierarchy = hierarchies.get(type);
+		if (hierarchy == null) {
+			final List<Class<?>> list = new ArrayList<Class<?>>();
+			collect(type, list);
+			hierarchy = list.toArray(new Class<?>[list.size()]);
+			hierarchies.put(type, hierarchy);
+		}
+		return hierarchy;
+	}
+
+	private static void collect(final Class<?> type, final List<Class<?>> list) {
+		if (type == null || !IRCEvent.class.isAssignableFrom(type)
+				|| list.contains(type)) {
+			return;
+		}
+		list.add(type);
+		collect(type.getSuperclass(), list);
+		for (Class<?> i : type.getInterfaces()) {
+			collect(i, list);
+		}
+	}
+
+	private static void offer(final Map<String, List<Subscription<?>>> commands,
+			final String command, final IRCEvent event, final String sender,
+			final String text) {
+		if (commands == null) {
+			return;
+		}
+		if (command != null) {
+			offer(commands.get(command), event, sender, text);
+		}
+		offer(commands.get(ANY), event, sender, text);
+	}
+
+	private static void offer(final List<Subscription<?>> list,
+			final IRCEvent event, final String sender, final String text) {
+		if (list == null) {
+			return;
+		}
+		for (Subscription<?> subscription : list) {
+			subscription.offer(event, sender, text);
+		}
+	}
+
+	private static String key(final String s) {
+		return s == null ? ANY : s;
+	}
+}
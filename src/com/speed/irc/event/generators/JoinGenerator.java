@@ -2,10 +2,12 @@ package com.speed.irc.event.generators;
 
 import com.speed.irc.event.ChannelUserEvent;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.types.Channel;
 import com.speed.irc.types.ChannelUser;
 import com.speed.irc.types.RawMessage;
+import com.speed.irc.types.ServerUser;
 
 /**
  * Processes JOIN messages sent from the server.
@@ -27,6 +29,7 @@ import com.speed.irc.types.RawMessage;
  * 
  * @author Shivam Mistry
  */
+@GeneratorProperties(events = ChannelUserEvent.class, updatesState = true)
 public class JoinGenerator implements EventGenerator {
 
 	public boolean accept(RawMessage raw) {
@@ -34,12 +37,13 @@ public class JoinGenerator implements EventGenerator {
 	}
 
 	public IRCEvent generate(RawMessage raw) {
-		final String[] parts = raw.getRaw().split("!");
-		final String nick = parts[0];
-		final String user = parts[1].split("@")[0];
-		final String host = parts[1].split("@")[1].split(" ")[0];
-		String chan = raw.getRaw().split(" ")[2];
-		if (raw.getRaw().split(" ")[2].startsWith(":")) {
+		final ServerUser from = raw.getServer().getUserCache().getSender(raw);
+		if (from == null) {
+			return null;
+		}
+		final String nick = from.getNick();
+		String chan = raw.getTarget();
+		if (chan.startsWith(":")) {
 			chan = chan.substring(1);
 		}
 		Channel channel = raw.getServer().getChannels().get(chan);
@@ -49,7 +53,8 @@ public class JoinGenerator implements EventGenerator {
 		if (channel.getUser(nick) != null) {
 			channel.removeChannelUser(channel.getUser(nick));
 		}
-		final ChannelUser u = new ChannelUser(nick, "", user, host, channel);
+		final ChannelUser u = new ChannelUser(nick, "", from.getUser(),
+				from.getHost(), channel);
 		return new ChannelUserEvent(this, channel, u,
 				ChannelUserEvent.USER_JOINED);
 	}
@@ -2,6 +2,7 @@ package com.speed.irc.event.generators;
 
 import com.speed.irc.event.ChannelUserEvent;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.types.Channel;
 import com.speed.irc.types.ChannelUser;
@@ -26,6 +27,7 @@ import com.speed.irc.types.RawMessage;
  * 
  * @author Shivam Mistry
  */
+@GeneratorProperties(events = ChannelUserEvent.class, updatesState = true)
 public class KickGenerator implements EventGenerator {
 
 	public boolean accept(RawMessage raw) {
@@ -4,8 +4,10 @@ import com.speed.irc.connection.Server;
 import com.speed.irc.event.ChannelEvent;
 import com.speed.irc.event.ChannelUserEvent;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelMaskList;
 import com.speed.irc.types.ChannelUser;
 import com.speed.irc.types.RawMessage;
 
@@ -29,6 +31,8 @@ import com.speed.irc.types.RawMessage;
  * 
  * @author Shivam Mistry
  */
+@GeneratorProperties(events = { ChannelEvent.class, ChannelUserEvent.class },
+		updatesState = true)
 public class ModeGenerator implements EventGenerator {
 
 	public boolean accept(RawMessage raw) {
@@ -44,53 +48,71 @@ public class ModeGenerator implements EventGenerator {
 		}
 		Channel channel = server.getChannels().get(name);
 		raw = raw.split(name, 2)[1].trim();
-		String[] strings = raw.split(" ");
-		String modes = strings[0];
-		if (strings.length == 1) {
-			channel.chanMode.parse(modes);
-			return new ChannelEvent(channel, ChannelEvent.MODE_CHANGED, this);
-		} else {
-			String[] u = new String[strings.length - 1];
-			System.arraycopy(strings, 1, u, 0, u.length);
-			boolean plus = false;
-			int index = 0;
-			for (int i = 0; i < modes.toCharArray().length; i++) {
-				char c = modes.toCharArray()[i];
-				if (c == '+') {
-					plus = true;
-					continue;
-				} else if (c == '-') {
-					plus = false;
-					continue;
+		final String[] strings = raw.split(" ");
+		final String modes = strings[0];
+		final String[] types = server.getChannelModeTypes();
+		final char[] prefixes = server.getModeLetters();
+		boolean plus = true, changed = false;
+		int index = 1;
+		for (int i = 0; i < modes.length(); i++) {
+			final char c = modes.charAt(i);
+			if (c == '+' || c == '-') {
+				plus = c == '+';
+				continue;
+			}
+			final boolean prefix = indexOf(prefixes, c) != -1;
+			if (!prefix && types[0].indexOf(c) == -1
+					&& types[1].indexOf(c) == -1
+					&& (!plus || types[2].indexOf(c) == -1)) {
+				channel.chanMode.parse((plus ? "+" : "-") + c);
+				changed = true;
+				continue;
+			}
+			if (index >= strings.length) {
+				continue;
+			}
+			final String param = strings[index++];
+			final ChannelMaskList list = channel.getMaskList(c);
+			if (list != null) {
+				if (plus) {
+					list.add(param);
+				} else {
+					list.remove(param);
 				}
-				if (c == 'b') {
-					if (plus) {
-						channel.bans.add(u[index]);
-					} else {
-						channel.bans.remove(u[index]);
-					}
-					server.getEventManager().dispatchEvent(
-							new ChannelEvent(channel,
-									ChannelEvent.MODE_CHANGED, this));
+				changed = true;
+			} else if (prefix) {
+				final ChannelUser user = channel.getUser(param);
+				if (user == null) {
 					continue;
 				}
-				ChannelUser user = channel.getUser(u[index]);
-				if (user != null) {
-					if (plus) {
-						user.addMode(c);
-					} else {
-						user.removeMode(c);
-					}
+				if (plus) {
+					user.addMode(c);
+				} else {
+					user.removeMode(c);
+				}
+				if (server.getEventManager().isSubscribed(
+						ChannelUserEvent.class)) {
 					server.getEventManager().dispatchEvent(
 							new ChannelUserEvent(this, channel, user,
 									ChannelUserEvent.USER_MODE_CHANGED));
-
 				}
 			}
-			index++;
-
+		}
+		if (changed) {
+			return new ChannelEvent(channel, ChannelEvent.MODE_CHANGED, this);
 		}
 		return null;
 	}
 
+	private static int indexOf(final char[] array, final char c) {
+		if (array != null) {
+			for (int i = 0; i < array.length; i++) {
+				if (array[i] == c) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
 }
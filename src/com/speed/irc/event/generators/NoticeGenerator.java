@@ -4,6 +4,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.NoticeEvent;
 import com.speed.irc.types.NOTICE;
@@ -29,6 +30,7 @@ import com.speed.irc.types.RawMessage;
  * 
  * @author Shivam Mistry
  */
+@GeneratorProperties(events = NoticeEvent.class)
 public class NoticeGenerator implements EventGenerator {
 	private static final Pattern PATTERN_NOTICE = Pattern
 			.compile("(.+?)!(.+?)@(.+?) NOTICE (#?.+?) :(.*)");
@@ -41,7 +43,9 @@ public class NoticeGenerator implements EventGenerator {
 		final Matcher notice_matcher = PATTERN_NOTICE.matcher(raw.getRaw());
 		if (notice_matcher.matches()) {
 			final String msg = notice_matcher.group(5);
-			final String sender = notice_matcher.group(1);
+			final String sender = raw.getServer().getUserCache()
+					.get(raw.getRaw(), notice_matcher.start(1),
+							notice_matcher.end(3)).getNick();
 			final String name = notice_matcher.group(4);
 			String channel = null;
 			if (raw.getRaw().split(" :", 2)[0].contains("NOTICE #"))
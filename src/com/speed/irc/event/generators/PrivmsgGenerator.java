@@ -5,6 +5,7 @@ import java.util.regex.Pattern;
 
 import com.speed.irc.connection.Server;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.PrivateMessageEvent;
 import com.speed.irc.types.Conversable;
@@ -32,6 +33,7 @@ import com.speed.irc.types.ServerUser;
  * 
  * @author Shivam Mistry
  */
+@GeneratorProperties(events = PrivateMessageEvent.class, updatesState = true)
 public class PrivmsgGenerator implements EventGenerator {
 	private static final Pattern PATTERN_PRIVMSG = Pattern
 			.compile("(.+?)!(.+?)@(.+?) PRIVMSG (#?.+?) :(.*)");
@@ -45,24 +47,33 @@ public class PrivmsgGenerator implements EventGenerator {
 		final Server server = raw.getServer();
 		if (priv_matcher.matches()) {
 			final String msg = priv_matcher.group(5);
-			final String sender = priv_matcher.group(1);
-			final String user = priv_matcher.group(2);
-			final String host = priv_matcher.group(3);
+			final ServerUser from = server.getUserCache().get(raw.getRaw(),
+					priv_matcher.start(1), priv_matcher.end(3));
+			final String sender = from.getNick();
+			final String host = from.getHost();
 			final String name = priv_matcher.group(4);
-			if (msg.startsWith("\u0001")) {
+			final boolean query = !raw.getRaw().contains("PRIVMSG #");
+			if (msg.startsWith("\u0001") && !msg.startsWith("\u0001ACTION")) {
 				String request = msg.replace("\u0001", "");
 				String reply = server.getCtcpReply(request);
 				if (reply != null) {
+					if (!server.getFloodProtection().allow(host)) {
+						return null;
+					}
 					server.sendRaw(String.format(
 							"NOTICE %s :\u0001%s %s\u0001\n", sender, request,
 							reply));
 				}
 			}
+			if (!server.getEventManager().isSubscribed(
+					PrivateMessageEvent.class)) {
+				return null;
+			}
 			Conversable conversable = null;
-			if (raw.getRaw().contains("PRIVMSG #")) {
+			if (!query) {
 				conversable = server.getChannels().get(name);
 			} else {
-				conversable = new ServerUser(sender, host, user, server);
+				conversable = from;
 			}
 			return new PrivateMessageEvent(
 					new PRIVMSG(msg, sender, conversable), this);
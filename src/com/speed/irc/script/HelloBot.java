@@ -5,6 +5,7 @@ import java.util.Random;
 import com.speed.irc.event.ApiEvent;
 import com.speed.irc.event.ChannelUserEvent;
 import com.speed.irc.event.ChannelUserListener;
+import com.speed.irc.event.EventHandler;
 import com.speed.irc.event.PrivateMessageEvent;
 import com.speed.irc.event.PrivateMessageListener;
 import com.speed.irc.types.Bot;
@@ -62,6 +63,21 @@ public class HelloBot extends Bot implements ChannelUserListener,
 		// identify("password");
 		server.setAutoReconnect(true);
 		server.setReadDebug(true);
+		server.getEventManager().on(PrivateMessageEvent.class)
+				.sender("Speed").command("!raw")
+				.handle(new EventHandler<PrivateMessageEvent>() {
+					public void handle(PrivateMessageEvent e) {
+						server.sendRaw(e.getMessage().getMessage()
+								.replaceFirst("!raw", "").trim());
+					}
+				});
+		server.getEventManager().on(PrivateMessageEvent.class)
+				.sender("Speed").command("!quit")
+				.handle(new EventHandler<PrivateMessageEvent>() {
+					public void handle(PrivateMessageEvent e) {
+						server.quit("bai");
+					}
+				});
 	}
 
 	@Override
@@ -75,11 +91,6 @@ public class HelloBot extends Bot implements ChannelUserListener,
 	public void messageReceived(PrivateMessageEvent e) {
 		final String message = e.getMessage().getMessage();
 		final String sender = e.getMessage().getSender();
-		if (message.contains("!raw") && sender.equals("Speed")) {
-			server.sendRaw(message.replaceFirst("!raw", "").trim());
-		} else if (message.equals("!quit") && sender.equals("Speed")) {
-			server.quit("bai");
-		}
 		if (e.getMessage().getConversable() == null
 				|| !(e.getMessage().getConversable() instanceof Channel)) {
 			return;
@@ -1,11 +1,11 @@
 package com.speed.irc.types;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.logging.Logger;
 
 import com.speed.irc.connection.Server;
+import com.speed.irc.connection.ServerBuilder;
 import com.speed.irc.event.ApiEvent;
 import com.speed.irc.event.ApiListener;
 import com.speed.irc.event.ExceptionEvent;
@@ -56,9 +56,11 @@ public abstract class Bot implements ApiListener {
 	public Bot(final String server, final int port) {
 		this.port = port;
 		try {
-			this.server = new Server(new Socket(server, port));
+			this.server = new ServerBuilder().addEndpoint(server, port).build();
+			this.server.getCapabilities().start();
 			this.server.sendRaw("NICK " + getNick() + "\n");
 			this.server.sendRaw("USER " + getUser() + " 0 * :" + getRealName());
+			this.server.start();
 			if (this instanceof IRCEventListener) {
 				this.server.getEventManager().addListener(
 						(IRCEventListener) this);
@@ -88,11 +90,14 @@ public abstract class Bot implements ApiListener {
 	}
 
 	private void connect() {
+		this.server.getCapabilities().start();
 		this.server.sendRaw("NICK " + getNick() + "\n");
 		this.server.sendRaw("USER " + getUser() + " " + modes + " * :"
 				+ getRealName() + "\n");
 		for (Channel s : getChannels()) {
-			s.join();
+			if (!server.getChannels().containsKey(s.getName())) {
+				s.join();
+			}
 		}
 	}
 
@@ -1,14 +1,22 @@
 package com.speed.irc.types;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import com.speed.irc.connection.Server;
 import com.speed.irc.event.ChannelUserEvent;
 import com.speed.irc.event.ChannelUserListener;
+import com.speed.irc.util.PersistentMap;
 
 /**
  * Represents a channel
@@ -34,16 +42,101 @@ public class Channel extends Conversable implements ChannelUserListener,
 		Runnable {
 	protected String name;
 	protected Server server;
-	public volatile List<ChannelUser> users = new LinkedList<ChannelUser>();
+	private volatile PersistentMap<String, ChannelUser> snapshot = PersistentMap
+			.empty();
+	/**
+	 * A read only view of the users in the channel.
+	 * 
+	 * @deprecated use {@link #getUsers()} or {@link #getUserSnapshot()}
+	 */
+	@Deprecated
+	public final List<ChannelUser> users = new AbstractList<ChannelUser>() {
+		/**
+		 * The snapshot {@link #indexed} was built from, so that index loops
+		 * copy the membership once per change rather than once per call.
+		 */
+		private PersistentMap<String, ChannelUser> indexedSnapshot;
+		private ChannelUser[] indexed;
+
+		public ChannelUser get(final int index) {
+			final MemberTable members = Channel.this.members;
+			if (members != null) {
+				return members.get(index);
+			}
+			final PersistentMap<String, ChannelUser> current = snapshot;
+			final ChannelUser[] array;
+			synchronized (this) {
+				if (indexedSnapshot != current) {
+					indexed = current.values().toArray(
+							new ChannelUser[current.size()]);
+					indexedSnapshot = current;
+				}
+				array = indexed;
+			}
+			if (index < 0 || index >= array.length) {
+				throw new IndexOutOfBoundsException("Index: " + index
+						+ ", Size: " + array.length);
+			}
+			return array[index];
+		}
+
+		public int size() {
+			final MemberTable members = Channel.this.members;
+			return members != null ? members.size() : snapshot.size();
+		}
+
+		public Iterator<ChannelUser> iterator() {
+			return Collections.unmodifiableList(getUsers()).iterator();
+		}
+	};
+	/**
+	 * Holds the members instead of {@link #snapshot} when the channel is
+	 * compact.
+	 */
+	private volatile MemberTable members;
 	public volatile List<ChannelUser> userBuffer = new LinkedList<ChannelUser>();
 	public volatile boolean isRunning = true;
 	public static final int WHO_DELAY = 90000;
+	/**
+	 * How long to wait before rejoining after being kicked, in milliseconds.
+	 */
+	public static final int REJOIN_DELAY = 50;
 	protected boolean autoRejoin;
 	protected String nick;
 	public Mode chanMode;
-	public List<String> bans = new LinkedList<String>();
+	protected final ChannelMaskList banList = new ChannelMaskList(this, 'b');
+	/**
+	 * A live view of the ban masks in {@link #getBans()}.
+	 * 
+	 * @deprecated use {@link #getBans()}
+	 */
+	@Deprecated
+	public final List<String> bans = new AbstractList<String>() {
+		public String get(final int index) {
+			return banList.getMasks().get(index);
+		}
+
+		public int size() {
+			return banList.size();
+		}
+
+		public void add(final int index, final String mask) {
+			banList.add(mask);
+		}
+
+		public boolean remove(final Object mask) {
+			return mask instanceof String && banList.remove((String) mask);
+		}
+
+		public void clear() {
+			banList.clear();
+		}
+	};
+	protected final ChannelMaskList exceptions = new ChannelMaskList(this, 'e');
+	protected final ChannelMaskList invites = new ChannelMaskList(this, 'I');
 	protected String topic;
-	protected ScheduledFuture<?> future;
+	protected String key;
+	protected Future<?> future;
 
 	public Future<?> getFuture() {
 		return future;
@@ -76,12 +169,113 @@ public class Channel extends Conversable implements ChannelUserListener,
 	}
 
 	/**
-	 * Gets the list of users in the channel.
+	 * Gets the users in the channel. The returned list is a copy of the
+	 * membership at the time of the call and is safe to iterate while the
+	 * channel is being updated; {@link #getUserSnapshot()} avoids the copy.
 	 * 
-	 * @return The list of users in the channel.
+	 * @return The users in the channel.
 	 */
 	public List<ChannelUser> getUsers() {
-		return users;
+		final MemberTable members = this.members;
+		if (members != null) {
+			return members.getUsers();
+		}
+		return new ArrayList<ChannelUser>(snapshot.values());
+	}
+
+	/**
+	 * Gets an immutable snapshot of the channel membership, keyed by lower case
+	 * nick. Obtaining the snapshot is O(1); later joins, parts and nick
+	 * changes are published as new snapshots and never change which users
+	 * one already obtained holds. The <code>ChannelUser</code>s themselves are
+	 * shared between snapshots and updated in place, so a user in an older
+	 * snapshot reports their current nick and modes, which may differ from
+	 * the key they are held under.
+	 * <p/>
+	 * A compact channel keeps no snapshot, so one is built from its
+	 * {@link MemberTable} on every call, creating a <code>ChannelUser</code>
+	 * per member; callers of large compact channels should keep the result
+	 * rather than call this repeatedly.
+	 * 
+	 * @return the current membership snapshot
+	 */
+	public PersistentMap<String, ChannelUser> getUserSnapshot() {
+		final MemberTable members = this.members;
+		if (members != null) {
+			PersistentMap<String, ChannelUser> map = PersistentMap.empty();
+			for (ChannelUser user : members.getUsers()) {
+				map = map.plus(user.getNick().toLowerCase(), user);
+			}
+			return map;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Sets whether the members of the channel are kept in a compact
+	 * {@link MemberTable} rather than as one {@link ChannelUser} each. A
+	 * compact channel takes a few dozen bytes per member, which suits
+	 * channels of tens of thousands of users, but creates new
+	 * <code>ChannelUser</code>s each time members are asked for, so they are
+	 * not the same objects from one call to the next and changes other than
+	 * to their modes are not kept. Members of a compact channel are not added
+	 * to the server's {@link com.speed.irc.connection.UserChannelIndex} one by
+	 * one; the index asks the table instead.
+	 * 
+	 * @param compact
+	 *            <code>true</code> to keep the members in a compact table
+	 */
+	public synchronized void setCompact(final boolean compact) {
+		if (compact && members == null) {
+			final MemberTable table = new MemberTable(this, server.getSymbols());
+			for (ChannelUser user : snapshot) {
+				table.put(user.getNick(), user.getUser(), user.getHost(),
+						user.getModes());
+			}
+			members = table;
+			snapshot = PersistentMap.empty();
+			server.getUserIndex().removeChannel(this);
+			server.getUserIndex().addCompact(this);
+		} else if (!compact && members != null) {
+			PersistentMap<String, ChannelUser> map = PersistentMap.empty();
+			server.getUserIndex().removeChannel(this);
+			for (ChannelUser user : members.getUsers()) {
+				map = map.plus(user.getNick().toLowerCase(), user);
+				server.getUserIndex().add(user.getNick(), this);
+			}
+			snapshot = map;
+			members.clear();
+			members = null;
+		}
+	}
+
+	/**
+	 * Checks whether the members of the channel are kept in a compact table.
+	 * 
+	 * @return <code>true</code> if the channel is compact
+	 * @see #setCompact(boolean)
+	 */
+	public boolean isCompact() {
+		return members != null;
+	}
+
+	/**
+	 * Gets the compact table of the channel's members.
+	 * 
+	 * @return the table, or <code>null</code> if the channel is not compact
+	 */
+	public MemberTable getMemberTable() {
+		return members;
+	}
+
+	/**
+	 * Writes the modes of a user back to the compact table.
+	 */
+	void modesChanged(final ChannelUser user) {
+		final MemberTable members = this.members;
+		if (members != null) {
+			members.setModes(user.getNick(), user.getModes());
+		}
 	}
 
 	/**
@@ -93,20 +287,283 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 *         <code>null</code>.
 	 */
 	public ChannelUser getUser(final String nick) {
-		for (ChannelUser user : users) {
-			if (user.getNick().equalsIgnoreCase(nick)) {
-				return user;
+		final MemberTable members = this.members;
+		if (members != null) {
+			return members.get(nick);
+		}
+		return snapshot.get(nick.toLowerCase());
+	}
+
+	public synchronized boolean addChannelUser(final ChannelUser user) {
+		if (members != null) {
+			members.put(user.getNick(), user.getUser(), user.getHost(),
+					user.getModes());
+			server.getUserIndex().addCompact(this);
+			return true;
+		}
+		final PersistentMap<String, ChannelUser> old = snapshot;
+		snapshot = old.plus(user.getNick().toLowerCase(), user);
+		server.getUserIndex().add(user.getNick(), this);
+		return snapshot != old;
+	}
+
+	public synchronized boolean removeChannelUser(final ChannelUser user) {
+		if (members != null) {
+			return members.remove(user.getNick());
+		}
+		final PersistentMap<String, ChannelUser> old = snapshot;
+		final String key = user.getNick().toLowerCase();
+		if (old.get(key) != user) {
+			return false;
+		}
+		snapshot = old.minus(key);
+		server.getUserIndex().remove(user.getNick(), this);
+		return true;
+	}
+
+	/**
+	 * Adds several users to the channel in a single snapshot.
+	 * 
+	 * @param members
+	 *            the users to add
+	 */
+	public synchronized void addChannelUsers(final Collection<ChannelUser> members) {
+		if (this.members != null) {
+			for (ChannelUser user : members) {
+				addChannelUser(user);
+			}
+			return;
+		}
+		PersistentMap<String, ChannelUser> map = snapshot;
+		for (ChannelUser user : members) {
+			map = map.plus(user.getNick().toLowerCase(), user);
+			server.getUserIndex().add(user.getNick(), this);
+		}
+		snapshot = map;
+	}
+
+	/**
+	 * Removes several users from the channel in a single snapshot.
+	 * 
+	 * @param nicks
+	 *            the nicks of the users to remove
+	 * @return the users that were removed
+	 */
+	public synchronized List<ChannelUser> removeChannelUsers(
+			final Collection<String> nicks) {
+		final List<ChannelUser> removed = new LinkedList<ChannelUser>();
+		if (members != null) {
+			for (String nick : nicks) {
+				final ChannelUser user = members.get(nick);
+				if (user != null) {
+					members.remove(nick);
+					removed.add(user);
+				}
+			}
+			return removed;
+		}
+		PersistentMap<String, ChannelUser> map = snapshot;
+		for (String nick : nicks) {
+			final String key = nick.toLowerCase();
+			final ChannelUser user = map.get(key);
+			if (user != null) {
+				map = map.minus(key);
+				removed.add(user);
+				server.getUserIndex().remove(nick, this);
+			}
+		}
+		snapshot = map;
+		return removed;
+	}
+
+	/**
+	 * Replaces the whole membership of the channel in a single snapshot.
+	 * Members that were already in the channel keep their
+	 * <code>ChannelUser</code>, updated from the new one, so that references
+	 * held elsewhere stay valid across a resync.
+	 * 
+	 * @param members
+	 *            the new members of the channel
+	 */
+	public synchronized void setChannelUsers(final Collection<ChannelUser> members) {
+		if (this.members != null) {
+			final Set<String> keep = new HashSet<String>();
+			for (ChannelUser member : members) {
+				keep.add(member.getNick().toLowerCase());
+			}
+			for (String nick : this.members.getNicks()) {
+				if (!keep.contains(nick.toLowerCase())) {
+					this.members.remove(nick);
+				}
+			}
+			for (ChannelUser member : members) {
+				this.members.put(member.getNick(), member.getUser(),
+						member.getHost(), member.getModes());
+			}
+			server.getUserIndex().addCompact(this);
+			return;
+		}
+		final PersistentMap<String, ChannelUser> old = snapshot;
+		PersistentMap<String, ChannelUser> map = PersistentMap.empty();
+		for (ChannelUser member : members) {
+			ChannelUser user = old.get(member.getNick().toLowerCase());
+			if (user != null) {
+				if (!user.getModes().equals(member.getModes())) {
+					user.setModes(member.getModes());
+					user.sync(member.getModes());
+				}
+				user.setNick(member.getNick());
+				user.setUser(member.getUser());
+				user.setHost(member.getHost());
+			} else {
+				user = member;
+				server.getUserIndex().add(user.getNick(), this);
+			}
+			map = map.plus(user.getNick().toLowerCase(), user);
+		}
+		for (ChannelUser user : old) {
+			if (!map.containsKey(user.getNick().toLowerCase())) {
+				server.getUserIndex().remove(user.getNick(), this);
+			}
+		}
+		snapshot = map;
+	}
+
+	/**
+	 * Changes the nick of a user in the channel.
+	 * 
+	 * @param oldNick
+	 *            the nick the user had
+	 * @param newNick
+	 *            the nick the user now has
+	 * @return the renamed user, or <code>null</code> if not in the channel
+	 */
+	public synchronized ChannelUser renameChannelUser(final String oldNick,
+			final String newNick) {
+		if (members != null) {
+			if (!members.rename(oldNick, newNick)) {
+				return null;
 			}
+			return members.get(newNick);
+		}
+		final ChannelUser user = snapshot.get(oldNick.toLowerCase());
+		if (user == null) {
+			return null;
+		}
+		user.setNick(newNick);
+		snapshot = snapshot.minus(oldNick.toLowerCase()).plus(newNick.toLowerCase(),
+				user);
+		server.getUserIndex().remove(oldNick, this);
+		server.getUserIndex().add(newNick, this);
+		return user;
+	}
+
+	/**
+	 * Gets the channel's ban list (+b).
+	 * 
+	 * @return the ban list
+	 */
+	public ChannelMaskList getBans() {
+		return banList;
+	}
+
+	/**
+	 * Gets the channel's ban exception list (+e).
+	 * 
+	 * @return the ban exception list
+	 */
+	public ChannelMaskList getExceptions() {
+		return exceptions;
+	}
+
+	/**
+	 * Gets the channel's invite exception list (+I).
+	 * 
+	 * @return the invite exception list
+	 */
+	public ChannelMaskList getInviteExceptions() {
+		return invites;
+	}
+
+	/**
+	 * Gets one of the channel's mask lists by mode letter.
+	 * 
+	 * @param mode
+	 *            <tt>b</tt>, <tt>e</tt> or <tt>I</tt>
+	 * @return the list, or <code>null</code> for any other mode
+	 */
+	public ChannelMaskList getMaskList(final char mode) {
+		switch (mode) {
+		case 'b':
+			return banList;
+		case 'e':
+			return exceptions;
+		case 'I':
+			return invites;
 		}
 		return null;
 	}
 
-	public boolean addChannelUser(final ChannelUser user) {
-		return users.add(user);
+	/**
+	 * Fetches the channel's ban list from the server.
+	 * 
+	 * @return a future completed with the bans, once {@link #getBans()} has
+	 *         been updated
+	 */
+	public CompletableFuture<List<String>> fetchBans() {
+		return server.getRequests().fetchMaskList(this, 'b');
+	}
+
+	/**
+	 * Fetches the channel's ban exception list from the server.
+	 * 
+	 * @return a future completed with the ban exceptions, once
+	 *         {@link #getExceptions()} has been updated
+	 */
+	public CompletableFuture<List<String>> fetchExceptions() {
+		return server.getRequests().fetchMaskList(this, 'e');
+	}
+
+	/**
+	 * Fetches the channel's invite exception list from the server.
+	 * 
+	 * @return a future completed with the invite exceptions, once
+	 *         {@link #getInviteExceptions()} has been updated
+	 */
+	public CompletableFuture<List<String>> fetchInviteExceptions() {
+		return server.getRequests().fetchMaskList(this, 'I');
 	}
 
-	public boolean removeChannelUser(final ChannelUser user) {
-		return users.remove(user);
+	/**
+	 * Fetches the channel's modes from the server.
+	 * 
+	 * @return a future completed with {@link #chanMode} once it has been
+	 *         updated
+	 */
+	public CompletableFuture<Mode> fetchModes() {
+		return server.getRequests().fetchModes(this);
+	}
+
+	/**
+	 * Fetches the channel's topic from the server.
+	 * 
+	 * @return a future completed with the topic, or <code>null</code> if none
+	 *         is set
+	 */
+	public CompletableFuture<String> fetchTopic() {
+		return server.getRequests().fetchTopic(this);
+	}
+
+	/**
+	 * Checks whether a user is banned from the channel: matched by a ban and
+	 * not by a ban exception.
+	 * 
+	 * @param user
+	 *            the user to check
+	 * @return <code>true</code> if the user is banned
+	 */
+	public boolean isBanned(final ServerUser user) {
+		return banList.matches(user) && !exceptions.matches(user);
 	}
 
 	public boolean isAutoRejoinOn() {
@@ -166,17 +623,13 @@ public class Channel extends Conversable implements ChannelUserListener,
 	}
 
 	/**
-	 * Joins the channel.
+	 * Joins the channel. The JOIN is sent through the server's
+	 * {@link com.speed.irc.connection.JoinPipeline}, batched with other
+	 * channels, and the channel's modes and users are queried once the join
+	 * is confirmed.
 	 */
 	public void join() {
-		server.sendRaw("JOIN :" + name);
-		server.sendRaw("MODE " + name);
-		isRunning = true;
-		if (!server.getChannels().containsValue(this)) {
-			server.getChannels().put(name, this);
-		}
-		future = server.getChanExec().scheduleWithFixedDelay(this, 0, 2,
-				TimeUnit.MINUTES);
+		join(null);
 	}
 
 	/**
@@ -184,15 +637,29 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 * 
 	 * @param password
 	 *            the password to join the channel with
+	 * @see #join()
 	 */
 	public void join(final String password) {
-		server.sendRaw("JOIN :" + name + " " + password);
-		server.sendRaw("MODE " + name);
+		key = password;
 		isRunning = true;
 		if (!server.getChannels().containsValue(this)) {
 			server.getChannels().put(name, this);
 		}
-		future = getServer().getChanExec().schedule(this, 5, TimeUnit.SECONDS);
+		server.getJoinPipeline().join(this, password);
+		if (future != null) {
+			future.cancel(false);
+		}
+		future = server.getTimer().newPeriodicTimeout(this, 2, 2,
+				TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Gets the key the channel was last joined with.
+	 * 
+	 * @return the key, or <tt>null</tt> if joined without one
+	 */
+	public String getKey() {
+		return key;
 	}
 
 	/**
@@ -322,6 +789,10 @@ public class Channel extends Conversable implements ChannelUserListener,
 			ChannelUser user = e.getUser();
 			if (user != null) {
 				removeChannelUser(user);
+				if (user.getNick().equals(server.getNick())) {
+					isRunning = false;
+					server.getUserIndex().removeChannel(this);
+				}
 			}
 		}
 	}
@@ -333,18 +804,20 @@ public class Channel extends Conversable implements ChannelUserListener,
 		if (e.getChannel().equals(this)) {
 			ChannelUser user = e.getUser();
 			removeChannelUser(user);
+			if (user.getNick().equals(nick)) {
+				server.getUserIndex().removeChannel(this);
+			}
 			if (user.getNick().equals(nick) && isAutoRejoinOn()) {
-				try {
-					Thread.sleep(50);
-				} catch (InterruptedException e1) {
-					e1.printStackTrace();
-				}
 				isRunning = false;
-				server.getChannels().remove(this);
-				join();
+				server.getChannels().remove(name);
+				server.getTimer().newTimeout(new Runnable() {
+					public void run() {
+						join(key);
+					}
+				}, REJOIN_DELAY, TimeUnit.MILLISECONDS);
 			} else if (user.getNick().equals(nick)) {
 				isRunning = false;
-				server.getChannels().remove(this);
+				server.getChannels().remove(name);
 			}
 		}
 	}
@@ -0,0 +1,151 @@
+package com.speed.irc.types;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.speed.irc.util.Hostmask;
+import com.speed.irc.util.HostmaskMatcher;
+
+/**
+ * One of a channel's mask lists: bans (+b), ban exceptions (+e) or invite
+ * exceptions (+I). The masks are indexed so that finding the masks matching a
+ * user does not scan the whole list.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class ChannelMaskList {
+	private final Channel channel;
+	private final char mode;
+	private final HostmaskMatcher masks = new HostmaskMatcher();
+
+	public ChannelMaskList(final Channel channel, final char mode) {
+		this.channel = channel;
+		this.mode = mode;
+	}
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Gets the channel mode letter of this list.
+	 * 
+	 * @return <tt>b</tt>, <tt>e</tt> or <tt>I</tt>
+	 */
+	public char getMode() {
+		return mode;
+	}
+
+	public boolean add(final String mask) {
+		return masks.add(mask);
+	}
+
+	public boolean remove(final String mask) {
+		return masks.remove(mask);
+	}
+
+	public boolean contains(final String mask) {
+		return masks.contains(mask);
+	}
+
+	public void clear() {
+		masks.clear();
+	}
+
+	public int size() {
+		return masks.size();
+	}
+
+	/**
+	 * Gets the masks in the list.
+	 * 
+	 * @return a copy of the masks in the order they were set
+	 */
+	public List<String> getMasks() {
+		return masks.getMasks();
+	}
+
+	/**
+	 * Checks whether any mask in the list matches a user.
+	 * 
+	 * @param user
+	 *            the user to check
+	 * @return <tt>true</tt> if a mask matches
+	 */
+	public boolean matches(final ServerUser user) {
+		return masks.matches(user.getNick(), user.getUser(), user.getHost());
+	}
+
+	/**
+	 * Gets the masks in the list that match a user.
+	 * 
+	 * @param user
+	 *            the user to check
+	 * @return the matching masks
+	 */
+	public List<String> getMatches(final ServerUser user) {
+		return masks.getMatches(user.getNick(), user.getUser(),
+				user.getHost());
+	}
+
+	/**
+	 * Gets the members of the channel a mask matches, e.g. who a ban would
+	 * affect. A mask with a literal nick is answered by looking the nick up;
+	 * any other mask is checked against a snapshot of the members, rejecting
+	 * those on another host or domain before the full match when the host part
+	 * is literal or <tt>*.domain</tt>.
+	 * 
+	 * @param mask
+	 *            the mask, which need not be in this list
+	 * @return the matching members
+	 */
+	public List<ChannelUser> getAffectedUsers(final String mask) {
+		final Hostmask m = new Hostmask(mask);
+		final List<ChannelUser> users = new ArrayList<ChannelUser>();
+		if (Hostmask.isLiteral(m.getNick())) {
+			final ChannelUser user = channel.getUser(m.getNick());
+			if (user != null
+					&& m.matches(user.getNick(), user.getUser(), user.getHost())) {
+				users.add(user);
+			}
+			return users;
+		}
+		String host = null;
+		String domain = null;
+		if (Hostmask.isLiteral(m.getHost())) {
+			host = m.getHost();
+		} else if (m.getHost().startsWith("*.")
+				&& Hostmask.isLiteral(m.getHost().substring(2))) {
+			domain = m.getHost().substring(1);
+		}
+		final Iterable<ChannelUser> members = channel.isCompact() ? channel
+				.getUsers() : channel.getUserSnapshot();
+		for (ChannelUser user : members) {
+			final String h = user.getHost();
+			if (host != null && (h == null || !host.equalsIgnoreCase(h))
+					|| domain != null
+					&& (h == null || !h.toLowerCase().endsWith(domain))) {
+				continue;
+			}
+			if (m.matches(user.getNick(), user.getUser(), h)) {
+				users.add(user);
+			}
+		}
+		return users;
+	}
+}
@@ -79,6 +79,7 @@ public class ChannelUser extends ServerUser {
 
 		modes = modes + mode;
 		sync(modes);
+		channel.modesChanged(this);
 	}
 
 	public void removeMode(char mode) {
@@ -91,6 +92,7 @@ public class ChannelUser extends ServerUser {
 		}
 		modes = builder.toString();
 		sync(modes);
+		channel.modesChanged(this);
 	}
 
 	public void setHost(String host) {
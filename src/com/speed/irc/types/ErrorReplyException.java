@@ -0,0 +1,55 @@
+package com.speed.irc.types;
+
+/**
+ * Thrown when the server answers a request with an error numeric, such as
+ * <tt>401</tt> for a WHOIS on a nick nobody is using.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class ErrorReplyException extends Exception {
+	private static final long serialVersionUID = 1L;
+	private final RawMessage reply;
+
+	public ErrorReplyException(final RawMessage reply) {
+		super(reply.getCommand() + " " + describe(reply.getRaw()));
+		this.reply = reply;
+	}
+
+	private static String describe(final String raw) {
+		final int colon = raw.indexOf(" :");
+		return colon == -1 ? raw : raw.substring(colon + 2);
+	}
+
+	/**
+	 * Gets the error the server replied with.
+	 * 
+	 * @return the error reply
+	 */
+	public RawMessage getReply() {
+		return reply;
+	}
+
+	/**
+	 * Gets the numeric of the error.
+	 * 
+	 * @return the error numeric
+	 */
+	public String getCode() {
+		return reply.getCommand();
+	}
+}
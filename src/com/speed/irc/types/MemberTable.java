@@ -0,0 +1,368 @@
+package com.speed.irc.types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.speed.irc.util.SymbolTable;
+
+/**
+ * Compact storage for the members of a very large channel. Each member is a
+ * row of two <tt>long</tt>s: the ids of their nick and user in the server's
+ * {@link SymbolTable}, then the id of their host and a bitmask of their
+ * prefixes, in the order of the server's <tt>PREFIX</tt>. Members are found
+ * by nick through an open addressed index of rows, and removed by moving the
+ * last row into their place. No object is kept per member: a
+ * {@link ChannelUser} is created each time a member is asked for, and changes
+ * to its modes are written back by {@link Channel}.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class MemberTable {
+	private static final char[] DEFAULT_SYMBOLS = { '~', '&', '@', '%', '+' };
+
+	private final Channel channel;
+	private final SymbolTable symbols;
+	private long[] rows = new long[32];
+	private int[] hashes = new int[16];
+	/**
+	 * Open addressed index of rows by folded nick hash, each slot holding the
+	 * row plus one.
+	 */
+	private int[] index = new int[32];
+	private int size;
+
+	public MemberTable(final Channel channel, final SymbolTable symbols) {
+		this.channel = channel;
+		this.symbols = symbols;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Estimates the memory taken by the rows and the index, not counting the
+	 * Strings in the symbol table.
+	 * 
+	 * @return the estimated size in bytes
+	 */
+	public synchronized long getFootprint() {
+		return rows.length * 8L + hashes.length * 4L + index.length * 4L + 48;
+	}
+
+	private static int hash(final String nick) {
+		int h = 0;
+		for (int i = 0; i < nick.length(); i++) {
+			h = 31 * h + Character.toLowerCase(nick.charAt(i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private int find(final String nick) {
+		final int hash = hash(nick);
+		final int mask = index.length - 1;
+		for (int slot = hash & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+			final int row = index[slot] - 1;
+			if (hashes[row] == hash
+					&& symbols.get(nickId(row)).equalsIgnoreCase(nick)) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	private int nickId(final int row) {
+		return (int) (rows[row * 2] >>> 32);
+	}
+
+	private int userId(final int row) {
+		return (int) rows[row * 2];
+	}
+
+	private int hostId(final int row) {
+		return (int) (rows[row * 2 + 1] >>> 32);
+	}
+
+	private int prefixes(final int row) {
+		return (int) rows[row * 2 + 1];
+	}
+
+	private void set(final int row, final int nick, final int user,
+			final int host, final int prefixes) {
+		rows[row * 2] = (long) nick << 32 | user & 0xffffffffL;
+		rows[row * 2 + 1] = (long) host << 32 | prefixes & 0xffffffffL;
+	}
+
+	private char[] modeSymbols() {
+		final char[] symbols = channel.getServer().getModeSymbols();
+		return symbols == null ? DEFAULT_SYMBOLS : symbols;
+	}
+
+	private int toMask(final String modes) {
+		final char[] symbols = modeSymbols();
+		int mask = 0;
+		for (int i = 0; i < modes.length(); i++) {
+			for (int bit = 0; bit < symbols.length && bit < 32; bit++) {
+				if (symbols[bit] == modes.charAt(i)) {
+					mask |= 1 << bit;
+				}
+			}
+		}
+		return mask;
+	}
+
+	private String toModes(final int mask) {
+		if (mask == 0) {
+			return "";
+		}
+		final char[] symbols = modeSymbols();
+		final StringBuilder builder = new StringBuilder(2);
+		for (int bit = 0; bit < symbols.length && bit < 32; bit++) {
+			if ((mask & 1 << bit) != 0) {
+				builder.append(symbols[bit]);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Adds a member, or updates them if they are already in the table.
+	 * 
+	 * @return <tt>true</tt> if the member was added
+	 */
+	public synchronized boolean put(final String nick, final String user,
+			final String host, final String modes) {
+		int row = find(nick);
+		final boolean added = row == -1;
+		final int nickId = symbols.acquire(nick);
+		final int userId = symbols.acquire(user);
+		final int hostId = symbols.acquire(host);
+		if (added) {
+			row = size++;
+			if (row * 2 == rows.length) {
+				rows = Arrays.copyOf(rows, rows.length * 2);
+				hashes = Arrays.copyOf(hashes, hashes.length * 2);
+			}
+			hashes[row] = hash(nick);
+			if (size * 2 > index.length) {
+				reindex(index.length * 2);
+			} else {
+				insert(row);
+			}
+		} else {
+			symbols.release(nickId(row));
+			symbols.release(userId(row));
+			symbols.release(hostId(row));
+		}
+		set(row, nickId, userId, hostId, toMask(modes));
+		return added;
+	}
+
+	/**
+	 * Removes a member.
+	 * 
+	 * @return <tt>true</tt> if they were in the table
+	 */
+	public synchronized boolean remove(final String nick) {
+		final int row = find(nick);
+		if (row == -1) {
+			return false;
+		}
+		symbols.release(nickId(row));
+		symbols.release(userId(row));
+		symbols.release(hostId(row));
+		delete(slotOf(row));
+		final int last = --size;
+		if (row != last) {
+			final int slot = slotOf(last);
+			rows[row * 2] = rows[last * 2];
+			rows[row * 2 + 1] = rows[last * 2 + 1];
+			hashes[row] = hashes[last];
+			index[slot] = row + 1;
+		}
+		return true;
+	}
+
+	/**
+	 * Changes the nick of a member, replacing any member already using the
+	 * new nick.
+	 * 
+	 * @return <tt>true</tt> if the member was in the table
+	 */
+	public synchronized boolean rename(final String oldNick,
+			final String newNick) {
+		int row = find(oldNick);
+		if (row == -1) {
+			return false;
+		}
+		final int other = find(newNick);
+		if (other != -1 && other != row) {
+			final boolean moved = row == size - 1;
+			remove(newNick);
+			if (moved) {
+				row = other;
+			}
+		}
+		delete(slotOf(row));
+		final int nickId = symbols.acquire(newNick);
+		symbols.release(nickId(row));
+		set(row, nickId, userId(row), hostId(row), prefixes(row));
+		hashes[row] = hash(newNick);
+		insert(row);
+		return true;
+	}
+
+	/**
+	 * Sets the prefixes of a member.
+	 * 
+	 * @return <tt>true</tt> if the member was in the table
+	 */
+	public synchronized boolean setModes(final String nick, final String modes) {
+		final int row = find(nick);
+		if (row == -1) {
+			return false;
+		}
+		set(row, nickId(row), userId(row), hostId(row), toMask(modes));
+		return true;
+	}
+
+	public synchronized boolean contains(final String nick) {
+		return find(nick) != -1;
+	}
+
+	/**
+	 * Gets a member.
+	 * 
+	 * @param nick
+	 *            the nick of the member
+	 * @return a new view of the member, or <tt>null</tt> if not in the table
+	 */
+	public synchronized ChannelUser get(final String nick) {
+		final int row = find(nick);
+		return row == -1 ? null : view(row);
+	}
+
+	/**
+	 * Gets a member by position, in the order of {@link #getUsers()}.
+	 * 
+	 * @param row
+	 *            the position of the member
+	 * @return a new view of the member
+	 * @throws IndexOutOfBoundsException
+	 *             if there is no member at that position
+	 */
+	public synchronized ChannelUser get(final int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Index: " + row + ", Size: "
+					+ size);
+		}
+		return view(row);
+	}
+
+	/**
+	 * Gets every member.
+	 * 
+	 * @return new views of the members
+	 */
+	public synchronized List<ChannelUser> getUsers() {
+		final List<ChannelUser> users = new ArrayList<ChannelUser>(size);
+		for (int row = 0; row < size; row++) {
+			users.add(view(row));
+		}
+		return users;
+	}
+
+	/**
+	 * Gets the nicks of every member.
+	 * 
+	 * @return the nicks
+	 */
+	public synchronized List<String> getNicks() {
+		final List<String> nicks = new ArrayList<String>(size);
+		for (int row = 0; row < size; row++) {
+			nicks.add(symbols.get(nickId(row)));
+		}
+		return nicks;
+	}
+
+	/**
+	 * Removes every member.
+	 */
+	public synchronized void clear() {
+		for (int row = 0; row < size; row++) {
+			symbols.release(nickId(row));
+			symbols.release(userId(row));
+			symbols.release(hostId(row));
+		}
+		size = 0;
+		Arrays.fill(index, 0);
+	}
+
+	private ChannelUser view(final int row) {
+		return new ChannelUser(symbols.get(nickId(row)),
+				toModes(prefixes(row)), symbols.get(userId(row)),
+				symbols.get(hostId(row)), channel);
+	}
+
+	private int slotOf(final int row) {
+		final int mask = index.length - 1;
+		int slot = hashes[row] & mask;
+		while (index[slot] != row + 1) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void insert(final int row) {
+		final int mask = index.length - 1;
+		int slot = hashes[row] & mask;
+		while (index[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		index[slot] = row + 1;
+	}
+
+	/**
+	 * Empties a slot of the index, moving later entries of the probe sequence
+	 * back so that none of them is cut off from its home slot.
+	 */
+	private void delete(int hole) {
+		final int mask = index.length - 1;
+		int j = hole;
+		while (true) {
+			j = (j + 1) & mask;
+			if (index[j] == 0) {
+				break;
+			}
+			final int home = hashes[index[j] - 1] & mask;
+			if (j > hole ? home <= hole || home > j : home <= hole && home > j) {
+				index[hole] = index[j];
+				hole = j;
+			}
+		}
+		index[hole] = 0;
+	}
+
+	private void reindex(final int length) {
+		index = new int[length];
+		for (int row = 0; row < size; row++) {
+			insert(row);
+		}
+	}
+}
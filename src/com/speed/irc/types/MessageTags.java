@@ -0,0 +1,203 @@
+package com.speed.irc.types;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The IRCv3 tags of a message. The tags are kept as the section of the line
+ * they were read from; the positions of the tags are only found the first
+ * time a tag is looked up, and values are only unescaped when they are read,
+ * so messages whose tags are never used cost no more than the line itself.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class MessageTags {
+	/**
+	 * The tags of a message without any.
+	 */
+	public static final MessageTags NONE = new MessageTags("");
+
+	private final String tags;
+	/**
+	 * Start of key, end of key and end of value for each tag, found on first
+	 * access.
+	 */
+	private volatile int[] offsets;
+	private int count;
+
+	/**
+	 * @param tags
+	 *            the tags section of a message, without the leading
+	 *            <tt>@</tt>
+	 */
+	public MessageTags(final String tags) {
+		this.tags = tags;
+	}
+
+	private void index() {
+		if (offsets != null) {
+			return;
+		}
+		final int[] offsets = new int[12];
+		int[] current = offsets;
+		int count = 0;
+		int start = 0;
+		final int length = tags.length();
+		while (start < length) {
+			int end = tags.indexOf(';', start);
+			if (end == -1) {
+				end = length;
+			}
+			if (end > start) {
+				int eq = tags.indexOf('=', start);
+				if (eq == -1 || eq > end) {
+					eq = end;
+				}
+				if (count * 3 == current.length) {
+					final int[] grown = new int[current.length * 2];
+					System.arraycopy(current, 0, grown, 0, current.length);
+					current = grown;
+				}
+				current[count * 3] = start;
+				current[count * 3 + 1] = eq;
+				current[count * 3 + 2] = end;
+				count++;
+			}
+			start = end + 1;
+		}
+		this.count = count;
+		this.offsets = current;
+	}
+
+	private int find(final String key) {
+		index();
+		final int length = key.length();
+		for (int i = 0; i < count; i++) {
+			final int start = offsets[i * 3];
+			if (offsets[i * 3 + 1] - start == length
+					&& tags.regionMatches(start, key, 0, length)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks whether the message has a tag.
+	 * 
+	 * @param key
+	 *            the key of the tag, including any vendor prefix or
+	 *            <tt>+</tt>
+	 * @return <tt>true</tt> if the tag is present
+	 */
+	public boolean contains(final String key) {
+		return find(key) != -1;
+	}
+
+	/**
+	 * Gets the unescaped value of a tag.
+	 * 
+	 * @param key
+	 *            the key of the tag, including any vendor prefix or
+	 *            <tt>+</tt>
+	 * @return the value, <tt>""</tt> if the tag has no value or <tt>null</tt>
+	 *         if the message does not have the tag
+	 */
+	public String get(final String key) {
+		final int i = find(key);
+		if (i == -1) {
+			return null;
+		}
+		final int start = offsets[i * 3 + 1] + 1;
+		final int end = offsets[i * 3 + 2];
+		if (start >= end) {
+			return "";
+		}
+		final int escape = tags.indexOf('\\', start);
+		if (escape == -1 || escape >= end) {
+			return tags.substring(start, end);
+		}
+		return unescape(tags, start, end);
+	}
+
+	public int size() {
+		index();
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return tags.length() == 0;
+	}
+
+	/**
+	 * Decodes all the tags.
+	 * 
+	 * @return a map of the keys to the unescaped values
+	 */
+	public Map<String, String> toMap() {
+		index();
+		final Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			final int eq = offsets[i * 3 + 1];
+			final int end = offsets[i * 3 + 2];
+			map.put(tags.substring(offsets[i * 3], eq), eq + 1 >= end ? ""
+					: unescape(tags, eq + 1, end));
+		}
+		return Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * Gets the tags as they were sent.
+	 * 
+	 * @return the escaped tags, without the leading <tt>@</tt>
+	 */
+	public String toString() {
+		return tags;
+	}
+
+	private static String unescape(final String s, final int start,
+			final int end) {
+		final StringBuilder builder = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c != '\\') {
+				builder.append(c);
+			} else if (++i < end) {
+				final char e = s.charAt(i);
+				switch (e) {
+				case ':':
+					builder.append(';');
+					break;
+				case 's':
+					builder.append(' ');
+					break;
+				case 'r':
+					builder.append('\r');
+					break;
+				case 'n':
+					builder.append('\n');
+					break;
+				default:
+					builder.append(e);
+				}
+			}
+		}
+		return builder.toString();
+	}
+}
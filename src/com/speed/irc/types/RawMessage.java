@@ -30,8 +30,26 @@ public class RawMessage {
 	private String sender;
 	private String target;
 	private Server server;
+	private final MessageTags tags;
+	private long serverTime = Long.MIN_VALUE;
 
+	/**
+	 * @param raw
+	 *            the message, optionally starting with IRCv3 tags
+	 * @param server
+	 *            the server the message was received from
+	 */
 	public RawMessage(String raw, final Server server) {
+		if (raw.startsWith("@")) {
+			final int space = raw.indexOf(' ');
+			tags = new MessageTags(raw.substring(1, space));
+			raw = raw.substring(space + 1);
+			if (raw.startsWith(":")) {
+				raw = raw.substring(1);
+			}
+		} else {
+			tags = MessageTags.NONE;
+		}
 		this.raw = raw;
 		this.server = server;
 		String[] strings = raw.split(" ");
@@ -42,6 +60,11 @@ public class RawMessage {
 
 	}
 
+	/**
+	 * Gets the message without its tags.
+	 * 
+	 * @return the raw message
+	 */
 	public String getRaw() {
 		return raw;
 	}
@@ -62,4 +85,122 @@ public class RawMessage {
 		return server;
 	}
 
+	/**
+	 * Gets the IRCv3 tags of the message.
+	 * 
+	 * @return the tags, empty if the message has none
+	 */
+	public MessageTags getTags() {
+		return tags;
+	}
+
+	/**
+	 * Gets the time the server received the message, from the
+	 * <tt>server-time</tt> tag.
+	 * 
+	 * @return the time in milliseconds since the epoch, or <tt>-1</tt> if the
+	 *         message has no valid <tt>time</tt> tag
+	 */
+	public long getServerTime() {
+		if (serverTime == Long.MIN_VALUE) {
+			serverTime = parseTime(tags.get("time"));
+		}
+		return serverTime;
+	}
+
+	/**
+	 * Gets the unique id of the message, from the <tt>msgid</tt> tag.
+	 * 
+	 * @return the id, or <tt>null</tt> if the message has none
+	 */
+	public String getMsgId() {
+		return tags.get("msgid");
+	}
+
+	/**
+	 * Gets the account of the sender, from the <tt>account</tt> tag.
+	 * 
+	 * @return the account, or <tt>null</tt> if the sender is not logged in or
+	 *         the tag is not sent
+	 */
+	public String getAccount() {
+		return tags.get("account");
+	}
+
+	/**
+	 * Gets the label of the command this message is a response to.
+	 * 
+	 * @return the label, or <tt>null</tt> if the message is not labeled
+	 */
+	public String getLabel() {
+		return tags.get("label");
+	}
+
+	/**
+	 * Gets the reference of the batch this message belongs to.
+	 * 
+	 * @return the batch reference, or <tt>null</tt> if the message is not in
+	 *         a batch
+	 */
+	public String getBatch() {
+		return tags.get("batch");
+	}
+
+	/**
+	 * Parses a <tt>YYYY-MM-DDThh:mm:ss.sssZ</tt> timestamp.
+	 */
+	private static long parseTime(final String time) {
+		if (time == null || time.length() < 20 || time.charAt(4) != '-'
+				|| time.charAt(7) != '-' || time.charAt(10) != 'T'
+				|| time.charAt(13) != ':' || time.charAt(16) != ':'
+				|| time.charAt(time.length() - 1) != 'Z') {
+			return -1;
+		}
+		final int year = digits(time, 0, 4);
+		final int month = digits(time, 5, 7);
+		final int day = digits(time, 8, 10);
+		final int hour = digits(time, 11, 13);
+		final int minute = digits(time, 14, 16);
+		final int second = digits(time, 17, 19);
+		int millis = 0;
+		if (time.charAt(19) == '.') {
+			final int end = Math.min(time.length() - 1, 23);
+			millis = digits(time, 20, end);
+			for (int i = end; i < 23; i++) {
+				millis *= 10;
+			}
+		} else if (time.length() != 20) {
+			return -1;
+		}
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59
+				|| second < 0 || second > 60 || millis < 0) {
+			return -1;
+		}
+		final int y = month <= 2 ? year - 1 : year;
+		final int era = y / 400;
+		final int yoe = y - era * 400;
+		final int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day
+				- 1;
+		final int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		final long days = era * 146097L + doe - 719468;
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L
+				+ millis;
+	}
+
+	private static int digits(final String s, final int start, final int end) {
+		if (start >= end) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + c - '0';
+		}
+		return value;
+	}
+
 }
@@ -0,0 +1,156 @@
+package com.speed.irc.types;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds what the server told us about a user in reply to a WHOIS.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class UserInfo {
+	private final String nick;
+	private String user, host, realName, serverName, account, away;
+	private boolean operator;
+	private long idle = -1, signOn = -1;
+	private final List<String> channels = new ArrayList<String>();
+
+	public UserInfo(final String nick) {
+		this.nick = nick;
+	}
+
+	public String getNick() {
+		return nick;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public void setUser(final String user) {
+		this.user = user;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public void setHost(final String host) {
+		this.host = host;
+	}
+
+	public String getRealName() {
+		return realName;
+	}
+
+	public void setRealName(final String realName) {
+		this.realName = realName;
+	}
+
+	/**
+	 * Gets the name of the server the user is connected to.
+	 * 
+	 * @return the server name, or <tt>null</tt> if not known
+	 */
+	public String getServerName() {
+		return serverName;
+	}
+
+	public void setServerName(final String serverName) {
+		this.serverName = serverName;
+	}
+
+	/**
+	 * Gets the account the user is logged in to.
+	 * 
+	 * @return the account, or <tt>null</tt> if not logged in or not known
+	 */
+	public String getAccount() {
+		return account;
+	}
+
+	public void setAccount(final String account) {
+		this.account = account;
+	}
+
+	/**
+	 * Gets the away message of the user.
+	 * 
+	 * @return the away message, or <tt>null</tt> if the user is not away
+	 */
+	public String getAway() {
+		return away;
+	}
+
+	public void setAway(final String away) {
+		this.away = away;
+	}
+
+	public boolean isOperator() {
+		return operator;
+	}
+
+	public void setOperator(final boolean operator) {
+		this.operator = operator;
+	}
+
+	/**
+	 * Gets how long the user has been idle.
+	 * 
+	 * @return the idle time in seconds, or <tt>-1</tt> if not known
+	 */
+	public long getIdle() {
+		return idle;
+	}
+
+	public void setIdle(final long idle) {
+		this.idle = idle;
+	}
+
+	/**
+	 * Gets when the user connected.
+	 * 
+	 * @return the time in seconds since the epoch, or <tt>-1</tt> if not known
+	 */
+	public long getSignOn() {
+		return signOn;
+	}
+
+	public void setSignOn(final long signOn) {
+		this.signOn = signOn;
+	}
+
+	/**
+	 * Gets the channels the user is in, with their prefixes (such as
+	 * <tt>@#channel</tt>).
+	 * 
+	 * @return the channels, empty if none are visible
+	 */
+	public List<String> getChannels() {
+		return Collections.unmodifiableList(channels);
+	}
+
+	public void addChannel(final String channel) {
+		channels.add(channel);
+	}
+
+	public String toString() {
+		return String.format("%s!%s@%s", nick, user, host);
+	}
+}
@@ -0,0 +1,361 @@
+package com.speed.irc.util;
+
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer for large numbers of cheap timeouts. Timeouts are kept in a ring of
+ * buckets, one per tick, and a single thread advances through the ring once
+ * per tick, so scheduling and cancelling a timeout take constant time no
+ * matter how many are pending. Timeouts fire within one tick of their
+ * deadline. Expired tasks are handed to an executor, so a slow task never
+ * delays the timer.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class HashedWheelTimer {
+	private static final int WAITING = 0, RUNNING = 1, CANCELLED = 2,
+			DONE = 3;
+
+	private final long tick;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Executor executor;
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final Thread worker;
+	private final long start = System.nanoTime();
+	private volatile boolean stopped;
+	private final AtomicBoolean running = new AtomicBoolean();
+	private long ticks;
+
+	/**
+	 * Creates a timer. Its thread is started when the first timeout is
+	 * scheduled.
+	 * 
+	 * @param name
+	 *            the name of the timer thread
+	 * @param tickDuration
+	 *            the length of a tick, the precision of the timer
+	 * @param unit
+	 *            the unit of the tick length
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two
+	 * @param executor
+	 *            the executor expired tasks are run on
+	 */
+	public HashedWheelTimer(final String name, final long tickDuration,
+			final TimeUnit unit, final int wheelSize, final Executor executor) {
+		tick = Math.max(1, unit.toNanos(tickDuration));
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		this.executor = executor;
+		worker = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, name);
+		worker.setDaemon(true);
+	}
+
+	/**
+	 * Schedules a task to run once.
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @param delay
+	 *            the delay before running it
+	 * @param unit
+	 *            the unit of the delay
+	 * @return the handle used to cancel the task
+	 */
+	public Timeout newTimeout(final Runnable task, final long delay,
+			final TimeUnit unit) {
+		return schedule(task, unit.toNanos(delay), 0);
+	}
+
+	/**
+	 * Schedules a task to run repeatedly, each run a period after the last
+	 * was due, until it is cancelled.
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @param initialDelay
+	 *            the delay before the first run
+	 * @param period
+	 *            the delay between runs
+	 * @param unit
+	 *            the unit of the delays
+	 * @return the handle used to cancel the task
+	 */
+	public Timeout newPeriodicTimeout(final Runnable task,
+			final long initialDelay, final long period, final TimeUnit unit) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period <= 0");
+		}
+		return schedule(task, unit.toNanos(initialDelay), unit.toNanos(period));
+	}
+
+	private Timeout schedule(final Runnable task, final long delay,
+			final long period) {
+		if (stopped) {
+			throw new IllegalStateException("Timer has been stopped");
+		}
+		final Timeout timeout = new Timeout(task, System.nanoTime() - start
+				+ Math.max(0, delay), period);
+		added.add(timeout);
+		if (!running.get() && running.compareAndSet(false, true)) {
+			worker.start();
+		}
+		return timeout;
+	}
+
+	/**
+	 * Gets the number of timeouts waiting to expire.
+	 * 
+	 * @return the number of pending timeouts
+	 */
+	public int getPending() {
+		int pending = added.size();
+		for (Bucket bucket : wheel) {
+			pending += bucket.size;
+		}
+		return pending;
+	}
+
+	/**
+	 * Stops the timer. Pending timeouts never run.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	private void work() {
+		ticks = (System.nanoTime() - start) / tick;
+		while (!stopped) {
+			final long deadline = tick * (ticks + 1);
+			final long sleep = deadline - (System.nanoTime() - start);
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			Timeout timeout;
+			while ((timeout = cancelled.poll()) != null) {
+				if (timeout.bucket != null) {
+					timeout.bucket.remove(timeout);
+				}
+			}
+			while ((timeout = added.poll()) != null) {
+				if (timeout.state.get() != WAITING) {
+					continue;
+				}
+				final long due = Math.max(ticks, timeout.deadline / tick);
+				timeout.rounds = (due - ticks) / wheel.length;
+				wheel[(int) (due & mask)].add(timeout);
+			}
+			final Bucket bucket = wheel[(int) (ticks & mask)];
+			timeout = bucket.head;
+			while (timeout != null) {
+				final Timeout next = timeout.next;
+				if (timeout.rounds <= 0) {
+					bucket.remove(timeout);
+					if (timeout.state.compareAndSet(WAITING, RUNNING)) {
+						try {
+							executor.execute(timeout);
+						} catch (RejectedExecutionException e) {
+							timeout.state.set(DONE);
+						}
+					}
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+			ticks++;
+		}
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public class Timeout implements Runnable, Future<Void> {
+		private final Runnable task;
+		private final long period;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		private long deadline, rounds;
+		private Bucket bucket;
+		private Timeout prev, next;
+
+		private Timeout(final Runnable task, final long deadline,
+				final long period) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		/**
+		 * Runs the task; called by the executor.
+		 */
+		public void run() {
+			if (state.get() != RUNNING) {
+				return;
+			}
+			try {
+				task.run();
+			} finally {
+				if (period > 0 && !stopped) {
+					deadline += period;
+					if (state.compareAndSet(RUNNING, WAITING)) {
+						added.add(this);
+					}
+				} else {
+					state.compareAndSet(RUNNING, DONE);
+				}
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Cancels the task. A run already in progress is not interrupted.
+		 * 
+		 * @param mayInterruptIfRunning
+		 *            ignored
+		 * @return <tt>true</tt> if the task will not run again
+		 */
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			final int previous = state.getAndSet(CANCELLED);
+			if (previous == DONE) {
+				state.set(DONE);
+				return false;
+			}
+			if (previous == WAITING) {
+				cancelled.add(this);
+			}
+			synchronized (this) {
+				notifyAll();
+			}
+			return previous != CANCELLED;
+		}
+
+		public boolean cancel() {
+			return cancel(false);
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isDone() {
+			final int s = state.get();
+			return s == CANCELLED || s == DONE;
+		}
+
+		public synchronized Void get() throws InterruptedException {
+			while (!isDone()) {
+				wait();
+			}
+			if (isCancelled()) {
+				throw new CancellationException();
+			}
+			return null;
+		}
+
+		public synchronized Void get(final long timeout, final TimeUnit unit)
+				throws InterruptedException, TimeoutException {
+			final long end = System.nanoTime() + unit.toNanos(timeout);
+			while (!isDone()) {
+				final long left = end - System.nanoTime();
+				if (left <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+			if (isCancelled()) {
+				throw new CancellationException();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The timeouts due in one slot of the wheel, as a doubly linked list so
+	 * that a cancelled timeout is removed in constant time. Only touched by
+	 * the timer thread.
+	 */
+	private static class Bucket {
+		private Timeout head, tail;
+		private volatile int size;
+
+		private void add(final Timeout timeout) {
+			timeout.bucket = this;
+			timeout.prev = tail;
+			timeout.next = null;
+			if (tail == null) {
+				head = timeout;
+			} else {
+				tail.next = timeout;
+			}
+			tail = timeout;
+			size++;
+		}
+
+		private void remove(final Timeout timeout) {
+			if (timeout.bucket != this) {
+				return;
+			}
+			if (timeout.prev == null) {
+				head = timeout.next;
+			} else {
+				timeout.prev.next = timeout.next;
+			}
+			if (timeout.next == null) {
+				tail = timeout.prev;
+			} else {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.prev = timeout.next = null;
+			timeout.bucket = null;
+			size--;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.speed.irc.util;
+
+/**
+ * A compiled <tt>nick!user@host</tt> mask. Each part may use the wildcards
+ * <tt>*</tt> and <tt>?</tt>; parts left out of the mask match anything.
+ * Matching ignores case and does no regular expression work.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class Hostmask {
+	private final String mask;
+	private final String nick, user, host;
+
+	/**
+	 * Parses a mask. <tt>nick</tt>, <tt>user@host</tt> and
+	 * <tt>nick!user</tt> are completed with <tt>*</tt> for the missing parts.
+	 * 
+	 * @param mask
+	 *            the mask to parse
+	 */
+	public Hostmask(final String mask) {
+		final String m = mask.trim().toLowerCase();
+		final int bang = m.indexOf('!');
+		final int at = m.indexOf('@', bang + 1);
+		if (bang == -1 && at == -1) {
+			nick = m;
+			user = "*";
+			host = "*";
+		} else if (bang == -1) {
+			nick = "*";
+			user = m.substring(0, at);
+			host = m.substring(at + 1);
+		} else if (at == -1) {
+			nick = m.substring(0, bang);
+			user = m.substring(bang + 1);
+			host = "*";
+		} else {
+			nick = m.substring(0, bang);
+			user = m.substring(bang + 1, at);
+			host = m.substring(at + 1);
+		}
+		this.mask = nick + "!" + user + "@" + host;
+	}
+
+	/**
+	 * Gets the normalised mask, with all three parts present and in lower
+	 * case.
+	 * 
+	 * @return the normalised mask
+	 */
+	public String getMask() {
+		return mask;
+	}
+
+	public String getNick() {
+		return nick;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Checks whether a user matches this mask.
+	 * 
+	 * @param nick
+	 *            the user's nick
+	 * @param user
+	 *            the user's ident
+	 * @param host
+	 *            the user's host
+	 * @return <tt>true</tt> if all three parts match
+	 */
+	public boolean matches(final String nick, final String user,
+			final String host) {
+		return matches(this.nick, nick) && matches(this.user, user)
+				&& matches(this.host, host);
+	}
+
+	/**
+	 * Checks whether the nick and user parts match, for when the host is
+	 * already known to match.
+	 */
+	boolean matchesNickAndUser(final String nick, final String user) {
+		return matches(this.nick, nick) && matches(this.user, user);
+	}
+
+	/**
+	 * Checks whether a string contains no wildcards.
+	 * 
+	 * @param s
+	 *            the string
+	 * @return <tt>true</tt> if the string is matched literally
+	 */
+	public static boolean isLiteral(final String s) {
+		return s.indexOf('*') == -1 && s.indexOf('?') == -1;
+	}
+
+	/**
+	 * Matches a string against a glob, ignoring case. The glob must already be
+	 * in lower case.
+	 * 
+	 * @param glob
+	 *            the glob, using <tt>*</tt> and <tt>?</tt>
+	 * @param s
+	 *            the string to match
+	 * @return <tt>true</tt> if the whole string matches
+	 */
+	public static boolean matches(final String glob, final String s) {
+		if (s == null) {
+			return glob.equals("*");
+		}
+		int g = 0, i = 0, star = -1, mark = 0;
+		while (i < s.length()) {
+			if (g < glob.length()) {
+				final char c = glob.charAt(g);
+				if (c == '*') {
+					star = g++;
+					mark = i;
+					continue;
+				}
+				if (c == '?' || c == Character.toLowerCase(s.charAt(i))) {
+					g++;
+					i++;
+					continue;
+				}
+			}
+			if (star == -1) {
+				return false;
+			}
+			g = star + 1;
+			i = ++mark;
+		}
+		while (g < glob.length() && glob.charAt(g) == '*') {
+			g++;
+		}
+		return g == glob.length();
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		return o instanceof Hostmask && ((Hostmask) o).mask.equals(mask);
+	}
+
+	@Override
+	public int hashCode() {
+		return mask.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return mask;
+	}
+}
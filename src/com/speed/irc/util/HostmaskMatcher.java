@@ -0,0 +1,330 @@
+package com.speed.irc.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A set of {@link Hostmask}s indexed for fast matching. Masks with a literal
+ * host are kept in a hash table by host, masks of the form
+ * <tt>*.domain</tt> in a trie of reversed host labels, masks with only a
+ * literal nick in a hash table by nick, and the rest in a short list that is
+ * scanned. Matching a user therefore costs a few hash lookups however many
+ * masks there are.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class HostmaskMatcher {
+	private final Set<Hostmask> masks = new LinkedHashSet<Hostmask>();
+	private final Map<String, List<Hostmask>> hosts = new HashMap<String, List<Hostmask>>();
+	private final Map<String, List<Hostmask>> nicks = new HashMap<String, List<Hostmask>>();
+	private final TrieNode domains = new TrieNode();
+	private final List<Hostmask> globs = new ArrayList<Hostmask>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile int size;
+
+	/**
+	 * Adds a mask.
+	 * 
+	 * @param mask
+	 *            the mask to add
+	 * @return <tt>true</tt> if the mask was not already present
+	 */
+	public boolean add(final String mask) {
+		final Hostmask m = new Hostmask(mask);
+		lock.writeLock().lock();
+		try {
+			if (!masks.add(m)) {
+				return false;
+			}
+			final String host = m.getHost();
+			if (Hostmask.isLiteral(host)) {
+				put(hosts, host, m);
+			} else if (host.startsWith("*.")
+					&& Hostmask.isLiteral(host.substring(2))) {
+				domains.find(host.substring(2), true).add(m);
+			} else if (Hostmask.isLiteral(m.getNick())) {
+				put(nicks, m.getNick(), m);
+			} else {
+				globs.add(m);
+			}
+			size = masks.size();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a mask.
+	 * 
+	 * @param mask
+	 *            the mask to remove
+	 * @return <tt>true</tt> if the mask was present
+	 */
+	public boolean remove(final String mask) {
+		final Hostmask m = new Hostmask(mask);
+		lock.writeLock().lock();
+		try {
+			if (!masks.remove(m)) {
+				return false;
+			}
+			final String host = m.getHost();
+			if (Hostmask.isLiteral(host)) {
+				take(hosts, host, m);
+			} else if (host.startsWith("*.")
+					&& Hostmask.isLiteral(host.substring(2))) {
+				final TrieNode node = domains.find(host.substring(2), false);
+				if (node != null) {
+					node.masks.remove(m);
+				}
+			} else if (Hostmask.isLiteral(m.getNick())) {
+				take(nicks, m.getNick(), m);
+			} else {
+				globs.remove(m);
+			}
+			size = masks.size();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean contains(final String mask) {
+		lock.readLock().lock();
+		try {
+			return masks.contains(new Hostmask(mask));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			masks.clear();
+			hosts.clear();
+			nicks.clear();
+			domains.children = null;
+			domains.masks.clear();
+			globs.clear();
+			size = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets the masks, in normalised form.
+	 * 
+	 * @return a copy of the masks in the order they were added
+	 */
+	public List<String> getMasks() {
+		lock.readLock().lock();
+		try {
+			final List<String> list = new ArrayList<String>(masks.size());
+			for (Hostmask m : masks) {
+				list.add(m.getMask());
+			}
+			return list;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks whether any mask matches a user.
+	 * 
+	 * @param nick
+	 *            the user's nick
+	 * @param user
+	 *            the user's ident
+	 * @param host
+	 *            the user's host
+	 * @return <tt>true</tt> if a mask matches
+	 */
+	public boolean matches(final String nick, final String user,
+			final String host) {
+		if (size == 0) {
+			return false;
+		}
+		return match(nick, user, host, null);
+	}
+
+	/**
+	 * Gets every mask that matches a user.
+	 * 
+	 * @param nick
+	 *            the user's nick
+	 * @param user
+	 *            the user's ident
+	 * @param host
+	 *            the user's host
+	 * @return the matching masks, in normalised form
+	 */
+	public List<String> getMatches(final String nick, final String user,
+			final String host) {
+		final List<String> matches = new ArrayList<String>();
+		if (size != 0) {
+			match(nick, user, host, matches);
+		}
+		return matches;
+	}
+
+	/**
+	 * Finds matching masks, stopping at the first if there is no list to add
+	 * them to.
+	 */
+	private boolean match(final String nick, final String user,
+			final String host, final List<String> out) {
+		final String h = host.toLowerCase();
+		lock.readLock().lock();
+		try {
+			if (check(hosts.get(h), nick, user, out)
+					|| check(nicks.get(nick.toLowerCase()), nick, user, host,
+							out)) {
+				return true;
+			}
+			TrieNode node = domains;
+			int end = h.length();
+			while (node != null && end > 0) {
+				final int dot = h.lastIndexOf('.', end - 1);
+				if (dot == -1) {
+					break;
+				}
+				node = node.child(h.substring(dot + 1, end));
+				end = dot;
+				if (node != null && check(node.masks, nick, user, out)) {
+					return true;
+				}
+			}
+			return check(globs, nick, user, host, out);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static boolean check(final Collection<Hostmask> masks,
+			final String nick, final String user, final List<String> out) {
+		if (masks == null) {
+			return false;
+		}
+		for (Hostmask m : masks) {
+			if (m.matchesNickAndUser(nick, user)) {
+				if (out == null) {
+					return true;
+				}
+				out.add(m.getMask());
+			}
+		}
+		return false;
+	}
+
+	private static boolean check(final Collection<Hostmask> masks,
+			final String nick, final String user, final String host,
+			final List<String> out) {
+		if (masks == null) {
+			return false;
+		}
+		for (Hostmask m : masks) {
+			if (m.matches(nick, user, host)) {
+				if (out == null) {
+					return true;
+				}
+				out.add(m.getMask());
+			}
+		}
+		return false;
+	}
+
+	private static void put(final Map<String, List<Hostmask>> map,
+			final String key, final Hostmask m) {
+		List<Hostmask> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<Hostmask>(1);
+			map.put(key, list);
+		}
+		list.add(m);
+	}
+
+	private static void take(final Map<String, List<Hostmask>> map,
+			final String key, final Hostmask m) {
+		final List<Hostmask> list = map.get(key);
+		if (list != null && list.remove(m) && list.isEmpty()) {
+			map.remove(key);
+		}
+	}
+
+	/**
+	 * A node in the trie of reversed host labels: the node for
+	 * <tt>example.com</tt> is reached from the root through <tt>com</tt> then
+	 * <tt>example</tt>, and holds the masks for <tt>*.example.com</tt>.
+	 */
+	private static class TrieNode {
+		private Map<String, TrieNode> children;
+		private final List<Hostmask> masks = new ArrayList<Hostmask>(1);
+
+		private TrieNode child(final String label) {
+			return children == null ? null : children.get(label);
+		}
+
+		private void add(final Hostmask m) {
+			masks.add(m);
+		}
+
+		/**
+		 * Finds the node for a domain, optionally creating it.
+		 */
+		private TrieNode find(final String domain, final boolean create) {
+			TrieNode node = this;
+			int end = domain.length();
+			while (end > 0) {
+				final int dot = domain.lastIndexOf('.', end - 1);
+				final String label = domain.substring(dot + 1, end);
+				TrieNode next = node.child(label);
+				if (next == null) {
+					if (!create) {
+						return null;
+					}
+					if (node.children == null) {
+						node.children = new HashMap<String, TrieNode>(4);
+					}
+					next = new TrieNode();
+					node.children.put(label, next);
+				}
+				node = next;
+				end = dot;
+			}
+			return node;
+		}
+	}
+}
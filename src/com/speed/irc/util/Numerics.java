@@ -24,10 +24,40 @@ package com.speed.irc.util;
  * 
  */
 public interface Numerics {
+	String WELCOME = "001";
+	String ERRONEOUS_NICKNAME = "432";
+	String NICKNAME_IN_USE = "433";
 	String WHO_RESPONSE = "352";
 	String WHO_END = "315";
 	String SERVER_SUPPORT = "005";
+	String NO_SUCH_CHANNEL = "403";
+	String TOO_MANY_CHANNELS = "405";
+	String CHANNEL_IS_FULL = "471";
+	String INVITE_ONLY_CHANNEL = "473";
 	String BANNED_FROM_CHANNEL = "474";
+	String BAD_CHANNEL_KEY = "475";
 	String NOT_AN_OPERATOR = "482";
 	String CHANNEL_MODES = "324";
+	String INVITE_LIST = "346";
+	String EXCEPTION_LIST = "348";
+	String BAN_LIST = "367";
+	String BAN_LIST_END = "368";
+	String EXCEPTION_LIST_END = "349";
+	String INVITE_LIST_END = "347";
+	String CHANNEL_CREATED = "329";
+	String NO_TOPIC = "331";
+	String TOPIC = "332";
+	String TOPIC_INFO = "333";
+	String NAMES_END = "366";
+	String AWAY = "301";
+	String WHOIS_USER = "311";
+	String WHOIS_SERVER = "312";
+	String WHOIS_OPERATOR = "313";
+	String WHOIS_IDLE = "317";
+	String WHOIS_END = "318";
+	String WHOIS_CHANNELS = "319";
+	String WHOIS_ACCOUNT = "330";
+	String NO_SUCH_NICK = "401";
+	String NO_SUCH_SERVER = "402";
+	String NOT_ON_CHANNEL = "442";
 }
@@ -0,0 +1,415 @@
+package com.speed.irc.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash array mapped trie. Every modification returns a new map
+ * which shares all untouched branches with the map it was derived from, so a
+ * reference to a map is a consistent snapshot that can be read from any thread
+ * without copying or locking.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public final class PersistentMap<K, V> implements Iterable<V> {
+	private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<Object, Object>(
+			null, 0);
+
+	private final Node root;
+	private final int size;
+	private Collection<V> values;
+
+	private PersistentMap(final Node root, final int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Gets the empty map.
+	 *
+	 * @return the shared empty map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentMap<K, V> empty() {
+		return (PersistentMap<K, V>) EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets the value mapped to a key.
+	 *
+	 * @param key
+	 *            the key to look up
+	 * @return the value, or <tt>null</tt> if the key is not mapped
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final Object key) {
+		if (root == null) {
+			return null;
+		}
+		final Leaf leaf = root.find(0, hash(key), key);
+		return leaf == null ? null : (V) leaf.value;
+	}
+
+	public boolean containsKey(final Object key) {
+		return root != null && root.find(0, hash(key), key) != null;
+	}
+
+	/**
+	 * Returns a map with the key mapped to the value.
+	 *
+	 * @param key
+	 *            the key, not <tt>null</tt>
+	 * @param value
+	 *            the value
+	 * @return the new map, or this map if nothing changed
+	 */
+	public PersistentMap<K, V> plus(final K key, final V value) {
+		final int hash = hash(key);
+		final Leaf leaf = new Leaf(hash, key, value);
+		if (root == null) {
+			return new PersistentMap<K, V>(leaf, 1);
+		}
+		final boolean[] added = new boolean[1];
+		final Node node = root.assoc(0, leaf, added);
+		if (node == root) {
+			return this;
+		}
+		return new PersistentMap<K, V>(node, added[0] ? size + 1 : size);
+	}
+
+	/**
+	 * Returns a map without the key.
+	 *
+	 * @param key
+	 *            the key to remove
+	 * @return the new map, or this map if the key was not mapped
+	 */
+	public PersistentMap<K, V> minus(final Object key) {
+		if (root == null) {
+			return this;
+		}
+		final Node node = root.without(0, hash(key), key);
+		if (node == root) {
+			return this;
+		}
+		return node == null ? PersistentMap.<K, V> empty()
+				: new PersistentMap<K, V>(node, size - 1);
+	}
+
+	/**
+	 * Gets an unmodifiable view of the values in this map. The view never
+	 * changes as the map itself is immutable.
+	 *
+	 * @return the values of this map
+	 */
+	public Collection<V> values() {
+		if (values == null) {
+			values = new AbstractCollection<V>() {
+				public Iterator<V> iterator() {
+					return PersistentMap.this.iterator();
+				}
+
+				public int size() {
+					return size;
+				}
+			};
+		}
+		return values;
+	}
+
+	public Iterator<V> iterator() {
+		return new Iterator<V>() {
+			private final Node[][] stack = new Node[10][];
+			private final int[] index = new int[10];
+			private int depth = -1;
+			private Leaf next;
+
+			{
+				if (root instanceof Leaf) {
+					next = (Leaf) root;
+				} else if (root != null) {
+					push(root.children());
+					advance();
+				}
+			}
+
+			private void push(final Node[] children) {
+				depth++;
+				stack[depth] = children;
+				index[depth] = 0;
+			}
+
+			private void advance() {
+				next = null;
+				while (depth >= 0) {
+					if (index[depth] == stack[depth].length) {
+						stack[depth--] = null;
+						continue;
+					}
+					final Node node = stack[depth][index[depth]++];
+					if (node instanceof Leaf) {
+						next = (Leaf) node;
+						return;
+					}
+					push(node.children());
+				}
+			}
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@SuppressWarnings("unchecked")
+			public V next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				final V value = (V) next.value;
+				if (depth < 0) {
+					next = null;
+				} else {
+					advance();
+				}
+				return value;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static int hash(final Object key) {
+		final int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static int bit(final int hash, final int shift) {
+		return 1 << ((hash >>> shift) & 31);
+	}
+
+	private static abstract class Node {
+		abstract Leaf find(int shift, int hash, Object key);
+
+		abstract Node assoc(int shift, Leaf leaf, boolean[] added);
+
+		abstract Node without(int shift, int hash, Object key);
+
+		abstract Node[] children();
+	}
+
+	private static final class Leaf extends Node {
+		final int hash;
+		final Object key;
+		final Object value;
+
+		Leaf(final int hash, final Object key, final Object value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+
+		Leaf find(final int shift, final int hash, final Object key) {
+			return this.hash == hash && this.key.equals(key) ? this : null;
+		}
+
+		Node assoc(final int shift, final Leaf leaf, final boolean[] added) {
+			if (hash == leaf.hash && key.equals(leaf.key)) {
+				return value == leaf.value ? this : leaf;
+			}
+			added[0] = true;
+			if (hash == leaf.hash) {
+				return new Collision(hash, new Leaf[] { this, leaf });
+			}
+			return Bitmap.pair(shift, this, leaf);
+		}
+
+		Node without(final int shift, final int hash, final Object key) {
+			return find(shift, hash, key) == null ? this : null;
+		}
+
+		Node[] children() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static final class Bitmap extends Node {
+		final int bitmap;
+		final Node[] nodes;
+
+		Bitmap(final int bitmap, final Node[] nodes) {
+			this.bitmap = bitmap;
+			this.nodes = nodes;
+		}
+
+		static Node pair(final int shift, final Leaf a, final Leaf b) {
+			final int bitA = bit(a.hash, shift);
+			final int bitB = bit(b.hash, shift);
+			if (bitA == bitB) {
+				return new Bitmap(bitA, new Node[] { pair(shift + 5, a, b) });
+			}
+			final boolean ordered = ((a.hash >>> shift) & 31) < ((b.hash >>> shift) & 31);
+			return new Bitmap(bitA | bitB, ordered ? new Node[] { a, b }
+					: new Node[] { b, a });
+		}
+
+		private int index(final int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		Leaf find(final int shift, final int hash, final Object key) {
+			final int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			return nodes[index(bit)].find(shift + 5, hash, key);
+		}
+
+		Node assoc(final int shift, final Leaf leaf, final boolean[] added) {
+			final int bit = bit(leaf.hash, shift);
+			final int idx = index(bit);
+			if ((bitmap & bit) == 0) {
+				final Node[] copy = new Node[nodes.length + 1];
+				System.arraycopy(nodes, 0, copy, 0, idx);
+				copy[idx] = leaf;
+				System.arraycopy(nodes, idx, copy, idx + 1, nodes.length - idx);
+				added[0] = true;
+				return new Bitmap(bitmap | bit, copy);
+			}
+			final Node child = nodes[idx].assoc(shift + 5, leaf, added);
+			if (child == nodes[idx]) {
+				return this;
+			}
+			final Node[] copy = nodes.clone();
+			copy[idx] = child;
+			return new Bitmap(bitmap, copy);
+		}
+
+		Node without(final int shift, final int hash, final Object key) {
+			final int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			final int idx = index(bit);
+			final Node child = nodes[idx].without(shift + 5, hash, key);
+			if (child == nodes[idx]) {
+				return this;
+			}
+			if (child == null) {
+				if (nodes.length == 1) {
+					return null;
+				}
+				if (nodes.length == 2 && nodes[idx ^ 1] instanceof Leaf) {
+					return nodes[idx ^ 1];
+				}
+				final Node[] copy = new Node[nodes.length - 1];
+				System.arraycopy(nodes, 0, copy, 0, idx);
+				System.arraycopy(nodes, idx + 1, copy, idx, copy.length - idx);
+				return new Bitmap(bitmap & ~bit, copy);
+			}
+			if (nodes.length == 1 && child instanceof Leaf) {
+				return child;
+			}
+			final Node[] copy = nodes.clone();
+			copy[idx] = child;
+			return new Bitmap(bitmap, copy);
+		}
+
+		Node[] children() {
+			return nodes;
+		}
+	}
+
+	private static final class Collision extends Node {
+		final int hash;
+		final Leaf[] leaves;
+
+		Collision(final int hash, final Leaf[] leaves) {
+			this.hash = hash;
+			this.leaves = leaves;
+		}
+
+		Leaf find(final int shift, final int hash, final Object key) {
+			if (this.hash != hash) {
+				return null;
+			}
+			for (Leaf leaf : leaves) {
+				if (leaf.key.equals(key)) {
+					return leaf;
+				}
+			}
+			return null;
+		}
+
+		Node assoc(final int shift, final Leaf leaf, final boolean[] added) {
+			if (leaf.hash != hash) {
+				added[0] = true;
+				final Bitmap self = new Bitmap(bit(hash, shift),
+						new Node[] { this });
+				return self.assoc(shift, leaf, added);
+			}
+			for (int i = 0; i < leaves.length; i++) {
+				if (leaves[i].key.equals(leaf.key)) {
+					if (leaves[i].value == leaf.value) {
+						return this;
+					}
+					final Leaf[] copy = leaves.clone();
+					copy[i] = leaf;
+					return new Collision(hash, copy);
+				}
+			}
+			final Leaf[] copy = new Leaf[leaves.length + 1];
+			System.arraycopy(leaves, 0, copy, 0, leaves.length);
+			copy[leaves.length] = leaf;
+			added[0] = true;
+			return new Collision(hash, copy);
+		}
+
+		Node without(final int shift, final int hash, final Object key) {
+			if (this.hash != hash) {
+				return this;
+			}
+			for (int i = 0; i < leaves.length; i++) {
+				if (leaves[i].key.equals(key)) {
+					if (leaves.length == 2) {
+						return leaves[i ^ 1];
+					}
+					final Leaf[] copy = new Leaf[leaves.length - 1];
+					System.arraycopy(leaves, 0, copy, 0, i);
+					System.arraycopy(leaves, i + 1, copy, i, copy.length - i);
+					return new Collision(hash, copy);
+				}
+			}
+			return this;
+		}
+
+		Node[] children() {
+			return leaves;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.speed.irc.util;
+
+/**
+ * A bounded pool of Strings used to share the copies of text that many users
+ * have in common, such as hosts behind a cloak or a web gateway, idents and
+ * nicks. Text is looked up straight from the slice of the line it is in, so
+ * the String is only created the first time it is seen. The pool has a fixed
+ * number of slots; text that would go in a full set of slots replaces the
+ * first of them, so rarely seen text is dropped and the pool never grows.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class StringPool {
+	/**
+	 * The number of slots a String can be stored in.
+	 */
+	private static final int PROBES = 4;
+
+	private final int mask;
+	private final String[] strings;
+	private final int[] hashes;
+	private long hits, misses, saved;
+
+	/**
+	 * @param capacity
+	 *            the number of Strings to hold, rounded up to a power of two
+	 */
+	public StringPool(final int capacity) {
+		final int size = Math.max(PROBES,
+				Integer.highestOneBit(capacity - 1) << 1);
+		mask = size - 1;
+		strings = new String[size];
+		hashes = new int[size];
+	}
+
+	/**
+	 * Gets the pooled copy of a String.
+	 * 
+	 * @param s
+	 *            the String
+	 * @return an equal String from the pool, or <tt>null</tt> if <tt>s</tt>
+	 *         is <tt>null</tt>
+	 */
+	public String intern(final String s) {
+		return s == null ? null : intern(s, 0, s.length());
+	}
+
+	/**
+	 * Gets the pooled copy of part of some text, creating it only if the pool
+	 * does not hold it.
+	 * 
+	 * @param s
+	 *            the text
+	 * @param start
+	 *            the index of the first character
+	 * @param end
+	 *            the index after the last character
+	 * @return a String equal to the slice
+	 */
+	public synchronized String intern(final CharSequence s, final int start,
+			final int end) {
+		int hash = 0;
+		char max = 0;
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			hash = 31 * hash + c;
+			max |= c;
+		}
+		int free = -1;
+		for (int i = 0; i < PROBES; i++) {
+			final int slot = (hash + i) & mask;
+			final String pooled = strings[slot];
+			if (pooled == null) {
+				if (free == -1) {
+					free = slot;
+				}
+			} else if (hashes[slot] == hash && equal(pooled, s, start, end)) {
+				hits++;
+				saved += size(end - start, max < 256);
+				return pooled;
+			}
+		}
+		misses++;
+		final String string = s.subSequence(start, end).toString();
+		final int slot = free == -1 ? hash & mask : free;
+		strings[slot] = string;
+		hashes[slot] = hash;
+		return string;
+	}
+
+	private static boolean equal(final String pooled, final CharSequence s,
+			final int start, final int end) {
+		if (pooled.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < pooled.length(); i++) {
+			if (pooled.charAt(i) != s.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Estimates the heap taken by a String and its array of characters, one
+	 * byte a character if they all fit in Latin-1 and two otherwise.
+	 */
+	private static long size(final int length, final boolean latin1) {
+		return 24 + ((16 + length * (latin1 ? 1 : 2) + 7) & ~7);
+	}
+
+	/**
+	 * Gets the number of lookups that found a pooled String.
+	 * 
+	 * @return the number of hits
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups that created a String.
+	 * 
+	 * @return the number of misses
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Estimates the memory saved by sharing pooled Strings instead of
+	 * creating new ones.
+	 * 
+	 * @return the estimated number of bytes saved
+	 */
+	public synchronized long getSavedBytes() {
+		return saved;
+	}
+
+	/**
+	 * Gets the number of Strings the pool can hold.
+	 * 
+	 * @return the capacity of the pool
+	 */
+	public int getCapacity() {
+		return strings.length;
+	}
+
+	/**
+	 * Empties the pool. Strings already handed out are unaffected.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = null;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.speed.irc.util;
+
+import java.util.Arrays;
+
+/**
+ * Numbers Strings so that tables can store an <tt>int</tt> in place of each
+ * reference. Equal Strings get the same id for as long as they are held, and
+ * an id is freed for reuse once every holder has released it, so the table
+ * only holds the Strings in use.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class SymbolTable {
+	private String[] symbols;
+	private int[] hashes, refs;
+	/**
+	 * Open addressed index of ids by hash, each slot holding the id plus one.
+	 */
+	private int[] slots;
+	private int[] free = new int[16];
+	private int freeCount, next, size;
+
+	public SymbolTable() {
+		this(64);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of Strings to make room for
+	 */
+	public SymbolTable(final int capacity) {
+		final int length = Math.max(capacity, 4);
+		symbols = new String[length];
+		hashes = new int[length];
+		refs = new int[length];
+		slots = new int[Integer.highestOneBit(length - 1) << 2];
+	}
+
+	private static int spread(final int h) {
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Gets the id of a String and holds it.
+	 * 
+	 * @param s
+	 *            the String
+	 * @return the id of the String
+	 */
+	public synchronized int acquire(final String s) {
+		final int hash = spread(s.hashCode());
+		final int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (slots[slot] != 0) {
+			final int id = slots[slot] - 1;
+			if (hashes[id] == hash && symbols[id].equals(s)) {
+				refs[id]++;
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		final int id = freeCount > 0 ? free[--freeCount] : next++;
+		if (id == symbols.length) {
+			final int length = symbols.length * 2;
+			symbols = Arrays.copyOf(symbols, length);
+			hashes = Arrays.copyOf(hashes, length);
+			refs = Arrays.copyOf(refs, length);
+		}
+		symbols[id] = s;
+		hashes[id] = hash;
+		refs[id] = 1;
+		slots[slot] = id + 1;
+		if (++size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		return id;
+	}
+
+	/**
+	 * Releases a hold on an id. The id and its String are freed once it is no
+	 * longer held.
+	 * 
+	 * @param id
+	 *            the id
+	 */
+	public synchronized void release(final int id) {
+		if (--refs[id] > 0) {
+			return;
+		}
+		final int mask = slots.length - 1;
+		int slot = hashes[id] & mask;
+		while (slots[slot] != id + 1) {
+			slot = (slot + 1) & mask;
+		}
+		delete(slot);
+		symbols[id] = null;
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, free.length * 2);
+		}
+		free[freeCount++] = id;
+		size--;
+	}
+
+	/**
+	 * Gets the String an id stands for.
+	 * 
+	 * @param id
+	 *            the id
+	 * @return the String
+	 */
+	public synchronized String get(final int id) {
+		return symbols[id];
+	}
+
+	/**
+	 * Gets the number of distinct Strings held.
+	 * 
+	 * @return the number of Strings
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Empties a slot, moving later entries of the probe sequence back so that
+	 * none of them is cut off from its home slot.
+	 */
+	private void delete(int hole) {
+		final int mask = slots.length - 1;
+		int j = hole;
+		while (true) {
+			j = (j + 1) & mask;
+			if (slots[j] == 0) {
+				break;
+			}
+			final int home = hashes[slots[j] - 1] & mask;
+			if (j > hole ? home <= hole || home > j : home <= hole && home > j) {
+				slots[hole] = slots[j];
+				hole = j;
+			}
+		}
+		slots[hole] = 0;
+	}
+
+	private void rehash(final int length) {
+		final int[] slots = new int[length];
+		final int mask = length - 1;
+		for (int id = 0; id < next; id++) {
+			if (symbols[id] != null) {
+				int slot = hashes[id] & mask;
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = id + 1;
+			}
+		}
+		this.slots = slots;
+	}
+}
@@ -0,0 +1,143 @@
+package com.speed.irc.types;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.speed.irc.connection.ServerBuilder;
+import com.speed.irc.util.SymbolTable;
+
+/**
+ * Tests {@link MemberTable} against a map of the expected members. Run the
+ * <tt>main</tt> method; a failure is thrown as an <tt>AssertionError</tt>.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class MemberTableTest {
+	private static final Channel CHANNEL = new Channel("#test",
+			new ServerBuilder().addEndpoint("localhost", 6667).build());
+
+	private static void check(final boolean condition, final String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	static void testCaseInsensitiveNicks() {
+		final MemberTable table = new MemberTable(CHANNEL, new SymbolTable());
+		check(table.put("Bob", "bob", "host", ""), "first put should add");
+		check(!table.put("BOB", "bob", "host", "@"), "second put should update");
+		check(table.contains("bob"), "lookup should ignore case");
+		check(table.size() == 1, "size " + table.size());
+		check(table.getNicks().contains("BOB"), "nick not updated "
+				+ table.getNicks());
+	}
+
+	static void testRenameOntoExistingNick() {
+		final SymbolTable symbols = new SymbolTable();
+		final MemberTable table = new MemberTable(CHANNEL, symbols);
+		table.put("a", "u", "h", "");
+		table.put("b", "u", "h", "");
+		table.put("c", "u", "h", "");
+		check(table.rename("c", "a"), "rename failed");
+		check(table.size() == 2, "size " + table.size());
+		check(table.contains("a") && table.contains("b")
+				&& !table.contains("c"), "members " + table.getNicks());
+		check(!table.rename("c", "d"), "renamed a missing member");
+	}
+
+	static void testClearReleasesSymbols() {
+		final SymbolTable symbols = new SymbolTable();
+		final MemberTable table = new MemberTable(CHANNEL, symbols);
+		for (int i = 0; i < 100; i++) {
+			table.put("n" + i, "user", "host" + (i % 10), "");
+		}
+		check(symbols.size() == 111, "symbols " + symbols.size());
+		table.clear();
+		check(table.size() == 0 && symbols.size() == 0, "not released: "
+				+ symbols.size());
+	}
+
+	static void testRandomised() {
+		final SymbolTable symbols = new SymbolTable();
+		final MemberTable table = new MemberTable(CHANNEL, symbols);
+		final Map<String, String> expected = new HashMap<String, String>();
+		final Random random = new Random(7);
+		for (int i = 0; i < 200000; i++) {
+			final String nick = "Nick" + random.nextInt(5000);
+			final String key = nick.toLowerCase();
+			switch (random.nextInt(3)) {
+			case 0:
+				check(table.put(nick, "u", "h", "") != expected
+						.containsKey(key), "put " + nick);
+				expected.put(key, nick);
+				break;
+			case 1:
+				check(table.remove(nick) == (expected.remove(key) != null),
+						"remove " + nick);
+				break;
+			default:
+				final String to = "Nick" + random.nextInt(5000);
+				final boolean had = expected.remove(key) != null;
+				check(table.rename(nick, to) == had, "rename " + nick);
+				if (had) {
+					expected.put(to.toLowerCase(), to);
+				}
+			}
+			if (i % 1000 == 0) {
+				check(table.size() == expected.size(), "size " + table.size()
+						+ " expected " + expected.size());
+				final Set<String> nicks = new HashSet<String>(table.getNicks());
+				check(nicks.equals(new HashSet<String>(expected.values())),
+						"members differ at " + i);
+			}
+		}
+		table.clear();
+		check(symbols.size() == 0, "symbols leaked: " + symbols.size());
+	}
+
+	static void testGetByPosition() {
+		final MemberTable table = new MemberTable(CHANNEL, new SymbolTable());
+		for (int i = 0; i < 50; i++) {
+			table.put("n" + i, "u", "h", "");
+		}
+		table.remove("n7");
+		final List<ChannelUser> users = table.getUsers();
+		for (int i = 0; i < users.size(); i++) {
+			check(table.get(i).getNick().equals(users.get(i).getNick()),
+					"position " + i);
+		}
+		try {
+			table.get(users.size());
+			check(false, "read past the end");
+		} catch (IndexOutOfBoundsException expected) {
+		}
+	}
+
+	public static void main(final String[] args) {
+		testCaseInsensitiveNicks();
+		testRenameOntoExistingNick();
+		testClearReleasesSymbols();
+		testRandomised();
+		testGetByPosition();
+		System.out.println("MemberTableTest passed");
+	}
+}
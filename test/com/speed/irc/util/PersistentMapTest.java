@@ -0,0 +1,138 @@
+package com.speed.irc.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests {@link PersistentMap} against a <tt>HashMap</tt>. Run the
+ * <tt>main</tt> method; a failure is thrown as an <tt>AssertionError</tt>.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class PersistentMapTest {
+
+	/**
+	 * A key whose hash code is chosen, to force collisions.
+	 */
+	private static final class Key {
+		private final String name;
+		private final int hash;
+
+		Key(final String name, final int hash) {
+			this.name = name;
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof Key && ((Key) o).name.equals(name);
+		}
+	}
+
+	private static void check(final boolean condition, final String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	private static <K, V> void checkSame(final PersistentMap<K, V> map,
+			final Map<K, V> expected) {
+		check(map.size() == expected.size(), "size " + map.size()
+				+ " expected " + expected.size());
+		for (Map.Entry<K, V> e : expected.entrySet()) {
+			check(e.getValue().equals(map.get(e.getKey())), "wrong value for "
+					+ e.getKey());
+		}
+		final Set<V> values = new HashSet<V>();
+		int count = 0;
+		for (V value : map) {
+			values.add(value);
+			count++;
+		}
+		check(count == expected.size(), "iterated " + count);
+		check(values.equals(new HashSet<V>(expected.values())),
+				"iterated values differ");
+	}
+
+	static void testOldVersionsUnchanged() {
+		final PersistentMap<String, Integer> empty = PersistentMap.empty();
+		final PersistentMap<String, Integer> one = empty.plus("a", 1);
+		final PersistentMap<String, Integer> two = one.plus("b", 2);
+		final PersistentMap<String, Integer> replaced = two.plus("a", 3);
+		final PersistentMap<String, Integer> removed = replaced.minus("b");
+		check(empty.isEmpty() && one.size() == 1 && two.size() == 2,
+				"sizes changed");
+		check(two.get("a") == 1 && replaced.get("a") == 3, "value shared");
+		check(replaced.containsKey("b") && !removed.containsKey("b"),
+				"removal leaked");
+		check(two.minus("missing") == two, "removing a missing key copied");
+		check(removed.minus("a").isEmpty(), "not empty");
+	}
+
+	static void testCollisions() {
+		PersistentMap<Key, String> map = PersistentMap.empty();
+		final Map<Key, String> expected = new HashMap<Key, String>();
+		for (int i = 0; i < 50; i++) {
+			final Key key = new Key("k" + i, i % 3);
+			map = map.plus(key, "v" + i);
+			expected.put(key, "v" + i);
+		}
+		checkSame(map, expected);
+		for (int i = 0; i < 50; i += 2) {
+			final Key key = new Key("k" + i, i % 3);
+			map = map.minus(key);
+			expected.remove(key);
+		}
+		checkSame(map, expected);
+	}
+
+	static void testRandomised() {
+		PersistentMap<String, Integer> map = PersistentMap.empty();
+		final Map<String, Integer> expected = new HashMap<String, Integer>();
+		final Random random = new Random(26);
+		for (int i = 0; i < 100000; i++) {
+			final String key = "nick" + random.nextInt(3000);
+			if (random.nextInt(3) == 0) {
+				map = map.minus(key);
+				expected.remove(key);
+			} else {
+				map = map.plus(key, i);
+				expected.put(key, i);
+			}
+			if (i % 5000 == 0) {
+				checkSame(map, expected);
+			}
+		}
+		checkSame(map, expected);
+	}
+
+	public static void main(final String[] args) {
+		testOldVersionsUnchanged();
+		testCollisions();
+		testRandomised();
+		System.out.println("PersistentMapTest passed");
+	}
+}
@@ -0,0 +1,98 @@
+package com.speed.irc.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests {@link SymbolTable} against a map of expected reference counts. Run
+ * the <tt>main</tt> method; a failure is thrown as an
+ * <tt>AssertionError</tt>.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class SymbolTableTest {
+
+	private static void check(final boolean condition, final String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	static void testSameStringSameId() {
+		final SymbolTable table = new SymbolTable(4);
+		final int id = table.acquire("host.example.com");
+		check(table.acquire(new String("host.example.com")) == id,
+				"equal Strings should share an id");
+		check(table.acquire("other") != id, "different Strings share an id");
+		check(table.size() == 2, "size " + table.size());
+		check("host.example.com".equals(table.get(id)), "get " + table.get(id));
+	}
+
+	static void testReleaseFreesOnLastHold() {
+		final SymbolTable table = new SymbolTable();
+		final int id = table.acquire("a");
+		table.acquire("a");
+		table.release(id);
+		check("a".equals(table.get(id)), "freed while still held");
+		table.release(id);
+		check(table.get(id) == null, "not freed once released");
+		check(table.size() == 0, "size " + table.size());
+		check(table.acquire("b") == id, "freed id should be reused");
+	}
+
+	static void testRandomised() {
+		final SymbolTable table = new SymbolTable(4);
+		final Map<String, Integer> refs = new HashMap<String, Integer>();
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		final Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			final String s = "s" + random.nextInt(2000);
+			final Integer held = refs.get(s);
+			if (held != null && random.nextBoolean()) {
+				table.release(ids.get(s));
+				if (held == 1) {
+					refs.remove(s);
+					ids.remove(s);
+				} else {
+					refs.put(s, held - 1);
+				}
+			} else {
+				final int id = table.acquire(s);
+				check(held == null || ids.get(s) == id, "id changed for " + s);
+				ids.put(s, id);
+				refs.put(s, held == null ? 1 : held + 1);
+			}
+			if (i % 1000 == 0) {
+				check(table.size() == refs.size(), "size " + table.size()
+						+ " expected " + refs.size());
+				for (Map.Entry<String, Integer> e : ids.entrySet()) {
+					check(e.getKey().equals(table.get(e.getValue())),
+							"lost " + e.getKey());
+				}
+			}
+		}
+	}
+
+	public static void main(final String[] args) {
+		testSameStringSameId();
+		testReleaseFreesOnLastHold();
+		testRandomised();
+		System.out.println("SymbolTableTest passed");
+	}
+}